@@ -0,0 +1,256 @@
+/*
+ * (C) Copyright 2017 David Jennings
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     David Jennings
+ */
+/**
+ * Finds the highest rate a pipeline can sustain.
+ * Runs a sender and the monitor of the store it ends up in, in one JVM.
+ * Each step sends at a fixed rate for stepSeconds while the monitor count is sampled;
+ * the ingest rate is the linear regression slope of the samples, as in the monitors.
+ * The offered rate is binary searched between minRate and maxRate until the interval
+ * is smaller than resolution. A step is sustained when the ingest rate is within
+ * tolerance of the offered rate.
+ *
+ * Creator: David Jennings
+ */
+package com.esri.rttest;
+
+import com.esri.rttest.mon.CountSource;
+import com.esri.rttest.mon.MonitorEngine;
+import com.esri.rttest.mon.RateEstimator;
+import com.esri.rttest.send.Cassandra;
+import com.esri.rttest.send.Kafka;
+import com.esri.rttest.send.RateProfile;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.json.JSONObject;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+public class CapacityFinder
+{
+
+    private static final Logger LOG = LogManager.getLogger(CapacityFinder.class);
+
+    /**
+     * Sends at the rate of the profile until it ends.
+     */
+    interface Load {
+        void send(RateProfile profile) throws Exception;
+    }
+
+    /**
+     * Result of one step of the search.
+     */
+    static class Step {
+        final int offered;
+        final double observed;
+        final double stdErr;
+        final boolean sustained;
+
+        Step(int offered, double observed, double stdErr, boolean sustained) {
+            this.offered = offered;
+            this.observed = observed;
+            this.stdErr = stdErr;
+            this.sustained = sustained;
+        }
+    }
+
+    Load load;
+    CountSource monitor;
+    int minRate;
+    int maxRate;
+    int resolution;
+    double tolerance;
+    int stepSeconds;
+    int warmupSeconds;
+    int sampleRateSec;
+    List<Step> curve;
+
+    public CapacityFinder(Load load, CountSource monitor, int minRate, int maxRate, int resolution, double tolerance, int stepSeconds, int warmupSeconds, int sampleRateSec) {
+        this.load = load;
+        this.monitor = monitor;
+        this.minRate = minRate;
+        this.maxRate = maxRate;
+        this.resolution = resolution;
+        this.tolerance = tolerance;
+        this.stepSeconds = stepSeconds;
+        this.warmupSeconds = warmupSeconds;
+        this.sampleRateSec = sampleRateSec;
+        this.curve = new ArrayList<>();
+    }
+
+    /**
+     * Sends at rate for stepSeconds and measures the ingest rate after the warmup.
+     */
+    Step measure(int rate) throws Exception {
+        System.out.println("Offering " + rate + "/s for " + stepSeconds + "s");
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<?> sending = executor.submit(() -> {
+                load.send(RateProfile.constant(rate, stepSeconds));
+                return null;
+            });
+
+            TimeUnit.SECONDS.sleep(warmupSeconds);
+
+            // Sample the count while the sender is still running; only the regression over the whole step is used
+            RateEstimator estimator = new RateEstimator(2);
+            long end = System.currentTimeMillis() + (stepSeconds - warmupSeconds) * 1000L;
+            while (System.currentTimeMillis() < end && !sending.isDone()) {
+                // the time of a sample is the middle of the count, as in MonitorEngine; a count can take seconds
+                long st = System.nanoTime();
+                long cnt = monitor.count();
+                long t = TimeUnit.NANOSECONDS.toMillis((st + System.nanoTime()) / 2);
+                estimator.add(t, cnt);
+                TimeUnit.SECONDS.sleep(sampleRateSec);
+            }
+            sending.get();
+
+            double observed = estimator.getRunSamples() > 1 ? estimator.runRate() : 0;
+            double stdErr = estimator.runRateStdErr();
+            boolean sustained = observed >= rate * (1.0 - tolerance);
+
+            Step step = new Step(rate, observed, stdErr, sustained);
+            curve.add(step);
+            System.out.format("| %d | %.0f | %.0f | %.3f | %s |\n", rate, observed, stdErr, observed / rate, sustained ? "yes" : "no");
+
+            drain();
+
+            return step;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Waits until the count stops changing so the backlog of one step is not counted in the next.
+     */
+    void drain() throws Exception {
+        long last = monitor.count();
+        long end = System.currentTimeMillis() + stepSeconds * 1000L;
+        while (System.currentTimeMillis() < end) {
+            TimeUnit.SECONDS.sleep(sampleRateSec);
+            long cnt = monitor.count();
+            if (cnt == last) {
+                return;
+            }
+            last = cnt;
+        }
+        LOG.warn("Count still changing " + stepSeconds + "s after the step ended");
+    }
+
+    /**
+     * @return Highest sustained rate found; 0 if even minRate was not sustained
+     */
+    public int run() throws Exception {
+        System.out.println("|Offered Rate|Observed Rate|Std Err|Ratio|Sustained|");
+        System.out.println("|------------|-------------|-------|-----|---------|");
+
+        int lo = minRate;
+        int hi = maxRate;
+
+        if (!measure(lo).sustained) {
+            return 0;
+        }
+        if (measure(hi).sustained) {
+            return hi;
+        }
+
+        // lo is sustained and hi is not
+        while (hi - lo > resolution) {
+            int mid = lo + (hi - lo) / 2;
+            if (measure(mid).sustained) {
+                lo = mid;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    public List<Step> getCurve() {
+        return curve;
+    }
+
+    static Load createLoad(JSONObject sender) throws Exception {
+        String type = sender.getString("type");
+        int threads = sender.optInt("threads", 1);
+        switch (type) {
+            case "kafka":
+                Kafka kafka = new Kafka(sender.getString("brokers"), sender.getString("topic"));
+                String file = sender.getString("file");
+                return profile -> kafka.sendFile(file, profile, Integer.MAX_VALUE, 0, threads);
+            case "cassandra":
+                Cassandra cassandra = new Cassandra(sender.getString("hosts"), sender.getString("keyspace"), sender.getString("table"),
+                        threads, sender.optBoolean("useSolr", false), sender.optBoolean("storeGeo", false),
+                        sender.optInt("maxInFlight", 1024), sender.optInt("batchSize", 1));
+                String simSpec = sender.optString("sim", null);
+                return profile -> cassandra.sendPlanes(profile, Integer.MAX_VALUE, 0, simSpec);
+            default:
+                throw new IllegalArgumentException("Unknown sender type: " + type);
+        }
+    }
+
+    public static void main(String[] args) {
+
+        LOG.info("Entering application.");
+        if (args.length != 1) {
+            System.err.println("Usage: CapacityFinder [plan.json]");
+            System.err.println("Example: java -cp target/pth-full.jar com.esri.rttest.CapacityFinder capacity.json");
+        } else {
+            try {
+                JSONObject plan = new JSONObject(new String(Files.readAllBytes(Paths.get(args[0])), StandardCharsets.UTF_8));
+
+                int sampleRateSec = plan.optInt("sampleRateSec", 5);
+                CapacityFinder finder = new CapacityFinder(
+                        createLoad(plan.getJSONObject("sender")),
+                        MonitorEngine.createSource(plan.getJSONObject("monitor")),
+                        plan.getInt("minRate"),
+                        plan.getInt("maxRate"),
+                        plan.optInt("resolution", Math.max(1, plan.getInt("maxRate") / 50)),
+                        plan.optDouble("tolerance", 0.05),
+                        plan.optInt("stepSeconds", 60),
+                        plan.optInt("warmupSeconds", 2 * sampleRateSec),
+                        sampleRateSec);
+
+                int best = finder.run();
+
+                System.out.println();
+                System.out.println("Offered,Observed,StdErr,Sustained");
+                for (Step step : finder.getCurve()) {
+                    System.out.format("%d,%.0f,%.0f,%s\n", step.offered, step.observed, step.stdErr, step.sustained);
+                }
+                System.out.format("Max sustainable rate: %,d\n", best);
+
+            } catch (Exception e) {
+                LOG.error("ERROR", e);
+            }
+            System.exit(0);
+        }
+
+    }
+}
@@ -32,12 +32,21 @@ public class Help {
         System.out.println("");
         System.out.println("Classes that send.");        
         System.out.println("com.esri.rttest.send.Kafka           : Send lines from file to Kafka.");
+        System.out.println("com.esri.rttest.send.Cassandra       : Send sample plane rows to a Cassandra table.");
 
         System.out.println("");
         System.out.println("Classes that monitor.");        
         System.out.println("com.esri.rttest.mon.CassandraMon    : Monitor count on a Cassandra table.");
         System.out.println("com.esri.rttest.mon.KafkaTopicMon   : Monitor count of a Kafka Topic.");
         System.out.println("com.esri.rttest.mon.SolrIndexMon    : Monitor count of a Solr Index.");
+        System.out.println("com.esri.rttest.mon.MonitorEngine   : Monitor counts of many tables, indexes and topics from one process.");
+
+        System.out.println("");
+        System.out.println("Classes that send and monitor.");
+        System.out.println("com.esri.rttest.CapacityFinder      : Search for the highest rate a sender and store can sustain.");
+
+        System.out.println("");
+        System.out.println("Add -Dpth.metrics.port=9400 to any sender or monitor to serve its values for Prometheus at http://host:9400/metrics.");
 
         System.out.println("");
         System.out.println("For additional help on each command; execute without any command line arguments. ");
@@ -0,0 +1,180 @@
+/*
+ * (C) Copyright 2017 David Jennings
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     David Jennings
+ */
+/**
+ * Serves the metrics of the senders and monitors in the Prometheus text format.
+ * Turned on with -Dpth.metrics.port=9400; then http://host:9400/metrics can be scraped.
+ * Senders and monitors register a Collector that writes their current values on each scrape.
+ * Uses only the HTTP server of the JDK. Without the property register does nothing.
+ *
+ * Creator: David Jennings
+ */
+package com.esri.rttest;
+
+import com.sun.net.httpserver.HttpServer;
+import org.HdrHistogram.Histogram;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+
+public final class Metrics {
+
+    private static final Logger LOG = LogManager.getLogger(Metrics.class);
+
+    public static final String PORT_PROPERTY = "pth.metrics.port";
+
+    // Latency histogram buckets in seconds
+    static final double[] BUCKETS = {0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10};
+
+    /**
+     * Writes the current values of one sender or monitor.
+     */
+    public interface Collector {
+        void collect(StringBuilder out);
+    }
+
+    private static final List<Collector> collectors = new CopyOnWriteArrayList<>();
+    private static HttpServer server;
+
+    private Metrics() {
+    }
+
+    /**
+     * Adds a collector; the first one starts the server when pth.metrics.port is set.
+     */
+    public static synchronized void register(Collector collector) {
+        Integer port = Integer.getInteger(PORT_PROPERTY);
+        if (port == null) {
+            return;
+        }
+        collectors.add(collector);
+        if (server == null) {
+            try {
+                server = HttpServer.create(new InetSocketAddress(port), 0);
+                server.createContext("/metrics", exchange -> {
+                    byte[] body = scrape().getBytes(StandardCharsets.UTF_8);
+                    exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+                    exchange.sendResponseHeaders(200, body.length);
+                    try (OutputStream os = exchange.getResponseBody()) {
+                        os.write(body);
+                    }
+                });
+                server.setExecutor(Executors.newSingleThreadExecutor(r -> {
+                    Thread t = new Thread(r, "metrics-http");
+                    t.setDaemon(true);
+                    return t;
+                }));
+                server.start();
+                System.out.println("Metrics at http://localhost:" + port + "/metrics");
+            } catch (IOException e) {
+                LOG.error("ERROR", e);
+                server = null;
+            }
+        }
+    }
+
+    /**
+     * Removes a collector; the server stops when none are left so it does not keep the JVM running.
+     */
+    public static synchronized void unregister(Collector collector) {
+        collectors.remove(collector);
+        if (collectors.isEmpty() && server != null) {
+            server.stop(1);
+            server = null;
+        }
+    }
+
+    static String scrape() {
+        StringBuilder out = new StringBuilder();
+        for (Collector collector : collectors) {
+            try {
+                collector.collect(out);
+            } catch (Exception e) {
+                LOG.error("ERROR", e);
+            }
+        }
+        return out.toString();
+    }
+
+    /**
+     * Writes the HELP and TYPE lines of a metric; once per metric even when it has several label sets.
+     */
+    public static void header(StringBuilder out, String name, String type, String help) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    /**
+     * @param labels Pairs of label name and value, e.g. "sender", "kafka"
+     */
+    public static void sample(StringBuilder out, String name, double value, String... labels) {
+        out.append(name);
+        if (labels.length > 0) {
+            out.append('{');
+            for (int i = 0; i + 1 < labels.length; i += 2) {
+                if (i > 0) {
+                    out.append(',');
+                }
+                out.append(labels[i]).append("=\"").append(escape(labels[i + 1])).append('"');
+            }
+            out.append('}');
+        }
+        out.append(' ').append(format(value)).append('\n');
+    }
+
+    /**
+     * Writes a Prometheus histogram in seconds from an HdrHistogram of nanoseconds.
+     */
+    public static void histogram(StringBuilder out, String name, Histogram nanos, String... labels) {
+        String[] bucketLabels = new String[labels.length + 2];
+        System.arraycopy(labels, 0, bucketLabels, 0, labels.length);
+        bucketLabels[labels.length] = "le";
+        for (double le : BUCKETS) {
+            bucketLabels[labels.length + 1] = format(le);
+            sample(out, name + "_bucket", nanos.getCountBetweenValues(0, (long) (le * 1e9)), bucketLabels);
+        }
+        bucketLabels[labels.length + 1] = "+Inf";
+        sample(out, name + "_bucket", nanos.getTotalCount(), bucketLabels);
+        sample(out, name + "_sum", nanos.getMean() * nanos.getTotalCount() / 1e9, labels);
+        sample(out, name + "_count", nanos.getTotalCount(), labels);
+    }
+
+    static String format(double value) {
+        if (Double.isNaN(value)) {
+            return "NaN";
+        }
+        if (Double.isInfinite(value)) {
+            return value > 0 ? "+Inf" : "-Inf";
+        }
+        if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+            return Long.toString((long) value);
+        }
+        return Double.toString(value);
+    }
+
+    static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+}
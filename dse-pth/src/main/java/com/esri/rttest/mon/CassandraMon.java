@@ -17,10 +17,11 @@
  *     David Jennings
  */
 /**
- * Monitors an Solr Collection.
+ * Monitors a Cassandra Table.
  * Periodically does a count and when count is changing collects samples.
  * After three samples are made outputs rates based on linear regression.
  * After counts stop changing outputs the final rate and last estimated rate.
+ * The sampling and rates are done by MonitorEngine.
  *
  * Creator: David Jennings
  */
@@ -30,146 +31,23 @@ import com.datastax.driver.core.Cluster;
 import com.datastax.driver.core.ResultSet;
 import com.datastax.driver.core.Row;
 import com.datastax.driver.core.Session;
-import org.apache.commons.math3.stat.regression.SimpleRegression;
+import com.datastax.driver.core.TokenRange;
+import com.datastax.driver.core.policies.DCAwareRoundRobinPolicy;
+import com.datastax.driver.core.policies.TokenAwarePolicy;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
-import java.util.HashMap;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
 
-public class CassandraMon
+public class CassandraMon implements CountSource
 {
 
     private static final Logger LOG = LogManager.getLogger(CassandraMon.class);
 
-    class CheckCount extends TimerTask {
-
-        long cnt1;
-        long cnt2;
-        long startCount;
-        long endCount;
-        int numSamples;
-        HashMap<Long, Long> samples;
-        long t1;
-        long t2;
-        SimpleRegression regression;
-
-        public CheckCount() {
-            regression = new SimpleRegression();
-            cnt1 = 0;
-            cnt2 = -1;
-            startCount = 0;
-            numSamples = 0;
-            t1 = 0L;
-            t2 = 0L;
-            samples = null;
-        }
-
-        boolean inCounting() {
-            if (cnt1 > 0) {
-                return true;
-            } else {
-                return false;
-            }
-        }
-
-        HashMap<Long, Long> getSamples() {
-            return samples;
-        }
-
-        long getStartCount() {
-            return startCount;
-        }
-
-        long getEndCount() {
-            return endCount;
-        }
-
-        @Override
-        public void run() {
-            try {
-
-                LOG.info("Checking Count");
-
-                // connect to the cassandra cluster and get the count
-                Session session = createOrGetCassandraSession();
-
-                ResultSet rs = session.execute("SELECT COUNT(*) as COUNT FROM " + keyspace + "." + tableName + "");
-                Row row = rs.one();
-                cnt1 = row.getLong("COUNT");
-
-                t1 = System.currentTimeMillis();
-
-                if (cnt2 == -1 || cnt1 < cnt2) {
-                    cnt2 = cnt1;
-                    startCount = cnt1;
-                    endCount = cnt1;
-                    regression = new SimpleRegression();
-                    samples = new HashMap<>();
-                    numSamples = 0;
-
-                } else if (cnt1 > cnt2) {
-                    // Add to Linear Regression
-                    regression.addData(t1, cnt1);
-                    samples.put(t1, cnt1);
-                    // Increase number of samples
-                    numSamples += 1;
-                    if (numSamples > 2) {
-                        double rcvRate = regression.getSlope() * 1000;
-                        System.out.format("%d,%d,%d,%.0f\n", numSamples, t1, cnt1, rcvRate);
-                    } else {
-                        System.out.format("%d,%d,%d\n", numSamples, t1, cnt1);
-                    }
-
-                } else if (cnt1 == cnt2 && numSamples > 0) {
-                    numSamples -= 1;
-                    // Remove the last sample
-                    regression.removeData(t2, cnt2);
-                    samples.remove(t2, cnt2);
-                    if (sendStdout) {
-                        System.out.println("Removing: " + t2 + "," + cnt2);
-                    }
-                    // Output Results
-                    long cnt = cnt2 - startCount;
-                    double rcvRate = regression.getSlope() * 1000;  // converting from ms to seconds
-
-                    if (numSamples > 5) {
-                        double rateStdErr = regression.getSlopeStdErr();
-                        if (sendStdout) {
-                            System.out.format("%d , %.2f, %.4f\n", cnt, rcvRate, rateStdErr);
-                        }
-                    } else if (numSamples >= 2) {
-                        if (sendStdout) {
-                            System.out.format("%d , %.2f\n", cnt, rcvRate);
-                        }
-                    } else {
-                        if (sendStdout) {
-                            System.out.println("Not enough samples to calculate rate. ");
-                        }
-                    }
-
-                    // Reset
-                    cnt1 = -1;
-                    cnt2 = -1;
-                    t1 = 0L;
-                    t2 = 0L;
-
-                }
-
-                cnt2 = cnt1;
-                t2 = t1;
-
-            } catch (Exception error) {
-                LOG.error("ERROR", error);
-                closeCassandraSession();
-            }
-
-        }
-
-    }
-
-    Timer timer;
+    MonitorEngine engine;
     String cassandraHost;
     String keyspace;
     String tableName;
@@ -177,8 +55,31 @@ public class CassandraMon
     String userpw;
     int sampleRateSec;
     boolean sendStdout;
+    String mode;
+    int maxConcurrent;
+    int sampleSize;
+
+    // Sub-ranges counted in sample mode; picked once so consecutive estimates can be compared
+    List<TokenRange> sample;
+
+    // Half width of the 95% confidence interval of the last count; 0 when exact, NaN when not known
+    volatile double lastCountError;
 
     public CassandraMon(String cassandraHost, String keyspace, String tableName, int sampleRateSec, String user, String userpw, boolean sendStdout) {
+        this(cassandraHost, keyspace, tableName, sampleRateSec, user, userpw, sendStdout, "ranges", 32);
+    }
+
+    public CassandraMon(String cassandraHost, String keyspace, String tableName, int sampleRateSec, String user, String userpw, boolean sendStdout, String mode, int maxConcurrent) {
+        this(cassandraHost, keyspace, tableName, sampleRateSec, user, userpw, sendStdout, mode, maxConcurrent, 64);
+    }
+
+    /**
+     * @param mode count: one SELECT COUNT(*); ranges: count token ranges in parallel;
+     *             sample: estimate from sampleSize token ranges; size_estimates: partitions from system.size_estimates
+     * @param maxConcurrent Most range queries outstanding at once in ranges and sample mode
+     * @param sampleSize Number of token ranges counted per sample in sample mode
+     */
+    public CassandraMon(String cassandraHost, String keyspace, String tableName, int sampleRateSec, String user, String userpw, boolean sendStdout, String mode, int maxConcurrent, int sampleSize) {
 
         this.cassandraHost = cassandraHost;
         this.keyspace = keyspace;
@@ -187,18 +88,37 @@ public class CassandraMon
         this.user = user;
         this.userpw = userpw;
         this.sendStdout = sendStdout;
+        this.mode = mode;
+        this.maxConcurrent = maxConcurrent;
+        this.sampleSize = sampleSize;
 
         // add the shutdown hook
         Runtime.getRuntime().addShutdownHook(new Thread(this::closeCassandraSession));
     }
 
     private Cluster cluster = null;
+    private Session session = null;
+    private TokenRangeCounter rangeCounter = null;
+
     private Session createOrGetCassandraSession() {
         if (cluster == null || cluster.isClosed())
         {
-            cluster = Cluster.builder().addContactPoint(cassandraHost).build();
+            Cluster.Builder builder = Cluster.builder()
+                    .addContactPoint(cassandraHost)
+                    .withLoadBalancingPolicy(new TokenRangeCounter.RangeRoutingPolicy(new TokenAwarePolicy(DCAwareRoundRobinPolicy.builder().build())));
+            if (!user.isEmpty()) {
+                builder.withCredentials(user, userpw);
+            }
+            cluster = builder.build();
+            session = null;
+            rangeCounter = null;
+            sample = null;
+        }
+        if (session == null || session.isClosed())
+        {
+            session = cluster.connect();
         }
-        return cluster.connect();
+        return session;
     }
 
     public void closeCassandraSession() {
@@ -206,11 +126,91 @@ public class CassandraMon
             cluster.close();
     }
 
+    @Override
+    public void close() {
+        closeCassandraSession();
+    }
+
+    @Override
+    public String getName() {
+        return keyspace + "." + tableName;
+    }
+
+    /**
+     * @return the half width of the 95% confidence interval of the last count in estimate modes
+     */
+    @Override
+    public String sampleColumns() {
+        return estimated() ? String.format(",%.0f", lastCountError) : "";
+    }
+
+    boolean estimated() {
+        return mode.equals("sample") || mode.equals("size_estimates");
+    }
+
+    /**
+     * @return Number of rows in the table; an estimate in sample and size_estimates mode
+     */
+    @Override
+    public long count() throws Exception {
+        try {
+            return countRows();
+        } catch (Exception e) {
+            // reconnect on the next count
+            closeCassandraSession();
+            throw e;
+        }
+    }
+
+    private long countRows() throws Exception {
+        // connect to the cassandra cluster and get the count
+        Session session = createOrGetCassandraSession();
+        if (rangeCounter == null && !mode.equals("count")) {
+            rangeCounter = new TokenRangeCounter(session, keyspace, tableName, maxConcurrent);
+        }
+
+        long cnt;
+        double error = 0;
+        switch (mode) {
+            case "ranges":
+                cnt = rangeCounter.count();
+                break;
+            case "sample":
+                if (sample == null) {
+                    List<TokenRange> ranges = new ArrayList<>(rangeCounter.getRanges());
+                    Collections.shuffle(ranges, new Random(1));
+                    sample = ranges.subList(0, Math.min(sampleSize, ranges.size()));
+                }
+                double[] estimate = rangeCounter.estimate(sample);
+                cnt = Math.round(estimate[0]);
+                error = estimate[1];
+                break;
+            case "size_estimates":
+                double[] partitions = rangeCounter.sizeEstimates();
+                cnt = Math.round(partitions[0]);
+                error = partitions[1];
+                break;
+            default:
+                ResultSet rs = session.execute("SELECT COUNT(*) as COUNT FROM " + keyspace + "." + tableName + "");
+                Row row = rs.one();
+                cnt = row.getLong("COUNT");
+        }
+        lastCountError = error;
+        return cnt;
+    }
+
+    /**
+     * @return Half width of the 95% confidence interval of the last count; 0 when exact, NaN when not known
+     */
+    public double getLastCountError() {
+        return lastCountError;
+    }
+
     public void run() {
         try {
 
-            timer = new Timer();
-            timer.schedule(new CassandraMon.CheckCount(), 0, sampleRateSec * 1000);
+            engine = new MonitorEngine(sampleRateSec).add(this);
+            engine.start();
 
         } catch (Exception e) {
             LOG.error("ERROR", e);
@@ -226,11 +226,16 @@ public class CassandraMon
         String password = "";  // default to empty string
         int sampleRateSec = 5; // default to 5 seconds.  
         Boolean sendStdout = true;
+        String mode = "ranges";
+        int maxConcurrent = 32;
+        int sampleSize = 64;
 
         LOG.info("Entering application.");
         int numargs = args.length;
-        if (numargs != 3 && numargs != 4 &&numargs != 6) {
-            System.err.print("Usage: CassandraMon [CassandraHost] [Keyspace] [TableName] (sampleRateSec) ((username) (password))  \n");
+        if (numargs < 3 || numargs > 7) {
+            System.err.print("Usage: CassandraMon [CassandraHost] [Keyspace] [TableName] (sampleRateSec) ((username) (password)) (mode)  \n");
+            System.err.println("  mode: ranges[:maxConcurrent] (default ranges:32) counts token ranges in parallel; count does one SELECT COUNT(*)");
+            System.err.println("        sample[:numRanges] (default sample:64) estimates from a fixed sample of token ranges; size_estimates reads partition estimates");
             System.err.println("Example: java -cp target/pth.jar com.esri.rttest.mon.CassandraMon localhost realtime safegraph 20 user pass");
         } else {
             cassandraHost = args[0];
@@ -241,12 +246,23 @@ public class CassandraMon
                 sampleRateSec = Integer.parseInt(args[3]);
             }
 
-            if (numargs == 6) {
+            if (numargs >= 6) {
                 username = args[4];
                 password = args[5];
             }
 
-            CassandraMon t = new CassandraMon(cassandraHost, keyspace, tableName, sampleRateSec, username, password, sendStdout);
+            // mode is the last argument after sampleRateSec or after the credentials
+            if (numargs == 5 || numargs == 7) {
+                String[] modeParts = args[numargs - 1].split(":");
+                mode = modeParts[0];
+                if (modeParts.length > 1 && mode.equals("sample")) {
+                    sampleSize = Integer.parseInt(modeParts[1]);
+                } else if (modeParts.length > 1) {
+                    maxConcurrent = Integer.parseInt(modeParts[1]);
+                }
+            }
+
+            CassandraMon t = new CassandraMon(cassandraHost, keyspace, tableName, sampleRateSec, username, password, sendStdout, mode, maxConcurrent, sampleSize);
             t.run();
 
         }
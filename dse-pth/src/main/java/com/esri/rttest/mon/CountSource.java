@@ -0,0 +1,55 @@
+/*
+ * (C) Copyright 2017 David Jennings
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     David Jennings
+ */
+/**
+ * Something whose count can be watched: a table, an index or a topic.
+ * The MonitorEngine calls count every sample and turns the counts into rates.
+ *
+ * Creator: David Jennings
+ */
+package com.esri.rttest.mon;
+
+public interface CountSource {
+
+    /**
+     * @return Name used to tell the sources apart in the output
+     */
+    String getName();
+
+    /**
+     * @return Current count; never called by two threads at once
+     */
+    long count() throws Exception;
+
+    /**
+     * @return Columns appended to each sample line, starting with a comma; empty for none
+     */
+    default String sampleColumns() {
+        return "";
+    }
+
+    /**
+     * @return Lines output after each count, e.g. per shard or partition; empty for none
+     */
+    default String summary() {
+        return "";
+    }
+
+    default void close() {
+    }
+}
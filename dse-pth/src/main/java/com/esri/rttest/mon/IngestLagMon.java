@@ -0,0 +1,242 @@
+/*
+ * (C) Copyright 2017 David Jennings
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     David Jennings
+ */
+/**
+ * Measures how long rows take to get from the Kafka sender into Cassandra.
+ * KafkaToDSE stores the Kafka record timestamp, set by the sender when the line is sent, as sendts.
+ * Periodically reads the latest row of a random sample of planes with the write time of a column.
+ * KafkaToDSE partitions the table by plane id with the rows of a plane ordered by ts descending, so
+ * the first row of a partition is the plane's last report; when planes report with increasing ts,
+ * as the simulator's do, that row is recent however many rows the table holds. Rows written since the last sample (and before this one, so no
+ * row is counted twice) are grouped into windows of the Spark batch interval by their write time.
+ * Once no more rows can fall in a window the distribution of the ingest lag (write time - sendts) is output.
+ *
+ * Creator: David Jennings
+ */
+package com.esri.rttest.mon;
+
+import com.datastax.driver.core.Cluster;
+import com.datastax.driver.core.PreparedStatement;
+import com.datastax.driver.core.ResultSet;
+import com.datastax.driver.core.ResultSetFuture;
+import com.datastax.driver.core.Row;
+import com.datastax.driver.core.Session;
+import org.HdrHistogram.Histogram;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ThreadLocalRandom;
+
+public class IngestLagMon {
+
+    private static final Logger LOG = LogManager.getLogger(IngestLagMon.class);
+
+    // The sample is read from this many random points on the ring
+    static final int NUM_PROBES = 16;
+
+    // Rows written from here on were not in a previous sample; 0 before the first one
+    private long lastSample = 0;
+
+    class CheckLag extends TimerTask {
+
+        @Override
+        public void run() {
+            try {
+                sample();
+            } catch (Exception error) {
+                LOG.error("ERROR", error);
+            }
+        }
+    }
+
+    Timer timer;
+    String cassandraHost;
+    String keyspace;
+    String tableName;
+    String user;
+    String userpw;
+    long batchIntervalMs;
+    int sampleRateSec;
+    int sampleRows;
+
+    // Lag in ms of the sampled rows by the start of the window they were written in
+    final TreeMap<Long, Histogram> windows = new TreeMap<>();
+    final Histogram total = new Histogram(3);
+
+    private Cluster cluster = null;
+    private Session session = null;
+    private PreparedStatement statement = null;
+
+    /**
+     * @param batchIntervalMs Length of the windows; the Spark batch interval
+     * @param sampleRows Number of planes whose latest row is read per sample
+     */
+    public IngestLagMon(String cassandraHost, String keyspace, String tableName, long batchIntervalMs, int sampleRateSec, int sampleRows, String user, String userpw) {
+        this.cassandraHost = cassandraHost;
+        this.keyspace = keyspace;
+        this.tableName = tableName;
+        this.batchIntervalMs = batchIntervalMs;
+        this.sampleRateSec = sampleRateSec;
+        this.sampleRows = sampleRows;
+        this.user = user;
+        this.userpw = userpw;
+
+        // add the shutdown hook
+        Runtime.getRuntime().addShutdownHook(new Thread(this::close));
+    }
+
+    private Session createOrGetCassandraSession() {
+        if (cluster == null || cluster.isClosed()) {
+            Cluster.Builder builder = Cluster.builder().addContactPoint(cassandraHost);
+            if (!user.isEmpty()) {
+                builder.withCredentials(user, userpw);
+            }
+            cluster = builder.build();
+            session = null;
+        }
+        if (session == null || session.isClosed()) {
+            session = cluster.connect();
+            // speed is written with every row; the write time of the primary key can not be read
+            // the rows of a plane are ordered by ts descending, so the first one is its latest report
+            statement = session.prepare("SELECT sendts, WRITETIME(speed) AS wt FROM " + keyspace + "." + tableName + " WHERE token(id) > ? PER PARTITION LIMIT 1 LIMIT ?");
+        }
+        return session;
+    }
+
+    /**
+     * Reads the latest row of sampleRows planes starting at random tokens and adds the ones written
+     * since the last sample to their window.
+     */
+    void sample() throws Exception {
+        Session session = createOrGetCassandraSession();
+
+        long now = System.currentTimeMillis();
+        // each sample takes the rows written in [since, now); rows before since were in the previous sample's range
+        long since = lastSample > 0 ? lastSample : now - sampleRateSec * 1000L;
+        lastSample = now;
+
+        List<ResultSetFuture> futures = new ArrayList<>();
+        int perProbe = Math.max(1, sampleRows / NUM_PROBES);
+        for (int i = 0; i < NUM_PROBES; i++) {
+            // Murmur3 tokens
+            futures.add(session.executeAsync(statement.bind(ThreadLocalRandom.current().nextLong(), perProbe)));
+        }
+
+        int sampled = 0;
+        int recent = 0;
+        for (ResultSetFuture future : futures) {
+            ResultSet rs = future.get();
+            for (Row row : rs) {
+                sampled += 1;
+                if (row.isNull("sendts")) {
+                    continue;
+                }
+                long written = row.getLong("wt") / 1000;  // microseconds to ms
+                if (written < since || written >= now) {
+                    continue;
+                }
+                recent += 1;
+                long lag = Math.max(0, written - row.getTimestamp("sendts").getTime());
+                long window = written - written % batchIntervalMs;
+                windows.computeIfAbsent(window, w -> new Histogram(3)).recordValue(lag);
+            }
+        }
+        LOG.info("Sampled " + sampled + " rows; " + recent + " written since " + since);
+
+        // windows that ended before the next sample starts looking can not get more rows
+        long done = now;
+        Iterator<Map.Entry<Long, Histogram>> it = windows.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Long, Histogram> window = it.next();
+            if (window.getKey() + batchIntervalMs > done) {
+                break;
+            }
+            Histogram h = window.getValue();
+            total.add(h);
+            System.out.format("%d,%d,%d,%d,%d,%d\n", window.getKey(), h.getTotalCount(),
+                    h.getValueAtPercentile(50), h.getValueAtPercentile(95), h.getValueAtPercentile(99), h.getMaxValue());
+            it.remove();
+        }
+    }
+
+    public void close() {
+        if (timer != null) {
+            timer.cancel();
+        }
+        if (total.getTotalCount() > 0) {
+            System.out.format("Ingest lag ms | rows: %d | p50: %d | p95: %d | p99: %d | max: %d\n", total.getTotalCount(),
+                    total.getValueAtPercentile(50), total.getValueAtPercentile(95), total.getValueAtPercentile(99), total.getMaxValue());
+        }
+        if (cluster != null) {
+            cluster.close();
+        }
+    }
+
+    public void run() {
+        try {
+
+            System.out.println("Window Start,Rows Sampled,p50,p95,p99,Max (ms)");
+            timer = new Timer();
+            timer.schedule(new IngestLagMon.CheckLag(), 0, sampleRateSec * 1000);
+
+        } catch (Exception e) {
+            LOG.error("ERROR", e);
+        }
+    }
+
+    public static void main(String[] args) {
+
+        String username = "";   // default to empty string
+        String password = "";  // default to empty string
+        long batchIntervalMs = 1000;
+        int sampleRateSec = 5;
+        int sampleRows = 5000;
+
+        LOG.info("Entering application.");
+        int numargs = args.length;
+        if (numargs < 3 || numargs > 8 || numargs == 7) {
+            System.err.print("Usage: IngestLagMon [CassandraHost] [Keyspace] [TableName] (batchIntervalMs) (sampleRateSec) (sampleRows) ((username) (password))  \n");
+            System.err.println("Example: java -cp target/pth.jar com.esri.rttest.mon.IngestLagMon localhost realtime planes 1000 5 5000");
+        } else {
+            if (numargs >= 4) {
+                batchIntervalMs = Long.parseLong(args[3]);
+            }
+            if (numargs >= 5) {
+                sampleRateSec = Integer.parseInt(args[4]);
+            }
+            if (numargs >= 6) {
+                sampleRows = Integer.parseInt(args[5]);
+            }
+            if (numargs == 8) {
+                username = args[6];
+                password = args[7];
+            }
+
+            IngestLagMon t = new IngestLagMon(args[0], args[1], args[2], batchIntervalMs, sampleRateSec, sampleRows, username, password);
+            t.run();
+        }
+
+    }
+}
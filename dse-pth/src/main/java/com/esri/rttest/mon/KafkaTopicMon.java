@@ -22,6 +22,18 @@
  * After three samples are made outputs rates based on linear regression.
  * After counts stop changing outputs the final rate and last estimated rate.
  *
+ * Several comma separated topics can be watched; the count is the sum over all of them.
+ * When a consumer group is given its committed offsets are read too, and the lag and
+ * lag growth of every partition are output each sample.
+ * kafka-clients 0.11 has no batched lookup of committed offsets (neither has the AdminClient
+ * of 0.11), so they are read one partition at a time: a round trip to the group coordinator
+ * per partition, about 1 ms each on a LAN, so 500 partitions add about half a second to a
+ * sample. The count is only the end offsets, read in one request, so the sample time is not
+ * skewed; the committed offsets are read after it, for the summary. A partition read later
+ * has a slightly newer committed offset, so its lag can be understated by what was consumed
+ * meanwhile.
+ * The sampling and rates are done by MonitorEngine.
+ *
  * 30 Aug 2017: Started adding Logging to try to get rid of log messages on startup.
  * Didn't work. If however you add 2>/dev/null to end of command line the info messages are hidden.
  *
@@ -30,18 +42,15 @@
  */
 package com.esri.rttest.mon;
 
-import java.util.Collections;
-import java.util.HashMap;
-import java.util.Iterator;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
-import java.util.Timer;
-import java.util.TimerTask;
-import java.util.function.Function;
-import java.util.stream.Collectors;
-import org.apache.commons.math3.stat.regression.SimpleRegression;
+import java.util.Set;
 import org.apache.kafka.clients.consumer.KafkaConsumer;
+import org.apache.kafka.clients.consumer.OffsetAndMetadata;
+import org.apache.kafka.common.PartitionInfo;
 import org.apache.kafka.common.TopicPartition;
 import org.apache.kafka.common.errors.TimeoutException;
 import org.apache.logging.log4j.LogManager;
@@ -51,204 +60,56 @@ import org.apache.logging.log4j.Logger;
  *
  * @author david
  */
-public class KafkaTopicMon {
+public class KafkaTopicMon implements CountSource {
 
     private static final Logger LOG = LogManager.getLogger(KafkaTopicMon.class);
 
-    // ******************* TimerTask Class ******************************
-    class CheckCount extends TimerTask {
-
-        long cnt1 = 0;
-        long cnt2 = -1;
-        long startCount = 0;
-        long endCount = 0;
-        int numSamples = 0;
-        HashMap<Long, Long> samples;
-        long t1 = 0L;
-        long t2 = 0L;
-        SimpleRegression regression;
-
-        public CheckCount() {
-            regression = new SimpleRegression();
-            cnt1 = 0;
-            cnt2 = -1;
-            startCount = 0;
-            numSamples = 0;
-            t1 = 0L;
-            t2 = 0L;
-
-        }
-
-        boolean inCounting() {
-            if (cnt1 > 0) {
-                return true;
-            } else {
-                return false;
-            }
-        }
-
-        HashMap<Long, Long> getSamples() {
-            return samples;
-        }
-
-        long getStartCount() {
-            return startCount;
-        }
-
-        long getEndCount() {
-            return endCount;
+    /**
+     * Offsets of one partition from the last two samples.
+     */
+    static class PartitionOffsets {
+        long begin;             // first offset still in the partition; only read when there is a group
+        long end;
+        long committed = -1;    // -1 when the group has not committed an offset
+        long time;
+        double produceRate;
+        double lagRate;
+
+        /**
+         * @return records from the committed offset to the end; without a committed offset, or when retention
+         * has removed records past it, from the first record still in the partition
+         */
+        long lag() {
+            return end - Math.max(committed, begin);
         }
-
-        @Override
-        public void run() {
-
-            try {
-                LOG.info("Checking Count");
-
-                List<TopicPartition> partitions = consumer.partitionsFor(topic).stream()
-                        .map(p -> new TopicPartition(topic, p.partition()))
-                        .collect(Collectors.toList());
-                consumer.assign(partitions);
-                consumer.seekToEnd(Collections.emptySet());
-                Map<TopicPartition, Long> endPartitions = partitions.stream()
-                        .collect(Collectors.toMap(Function.identity(), consumer::position));
-//              consumer.seekToBeginning(Collections.emptySet());
-//              cnt1 = partitions.stream().mapToLong(p -> endPartitions.get(p) - consumer.position(p)).sum();
-                Iterator itTP = endPartitions.entrySet().iterator();
-                cnt1 = 0;
-                while (itTP.hasNext()) {
-                    Map.Entry tp = (Map.Entry) itTP.next();
-                    cnt1 += (long) tp.getValue();
-                }
-
-                t1 = System.currentTimeMillis();
-                if (cnt2 == -1) {
-                    System.out.println("Watching for changes in count...  Use Ctrl-C to Exit.");
-                    System.out.println("|Sample Number|Epoch|Count|Linear Regression Rate|Approx. Instantaneous Rate|");
-                    System.out.println("|-------------|-----|-----|----------------------|--------------------------|");
-                }
-
-                if (cnt2 == -1 || cnt1 < cnt2) {
-                    cnt2 = cnt1;
-                    startCount = cnt1;
-                    endCount = cnt1;
-                    regression = new SimpleRegression();
-                    samples = new HashMap<>();
-                    numSamples = 0;
-
-                } else if (cnt1 > cnt2) {
-                    // Increase number of samples
-                    numSamples += 1;
-
-                    // Add to Linear Regression
-                    regression.addData(t1, cnt1);
-                    samples.put(t1, cnt1);
-
-                    if (numSamples >= 2) {
-                        double regRate = regression.getSlope() * 1000;
-                        double iRate = (double) (cnt1 - cnt2) / (double) (t1 - t2) * 1000.0;
-                        if (sendStdout) {
-                            System.out.println("| " + numSamples + " | " + t1 + " | " + (cnt1 - startCount) + " | " + String.format("%.0f", regRate) + " | " + String.format("%.0f", iRate) + " |");
-                        }
-                    } else {
-                        System.out.println("| " + numSamples + " | " + t1 + " | " + (cnt1 - startCount) + " |           |           |");
-                    }
-
-                } else if (cnt1 == cnt2 && numSamples > 0) {
-
-                    System.out.println("Count is no longer increasing...");
-
-                    endCount = cnt1;
-
-                    numSamples -= 1;
-                    // Remove the last sample
-                    regression.removeData(t2, cnt2);
-                    samples.remove(t2, cnt2);
-
-                    // Calculate Average Rate
-                    long minTime = Long.MAX_VALUE;
-                    long maxTime = Long.MIN_VALUE;
-                    long minCount = Long.MAX_VALUE;
-                    long maxCount = Long.MIN_VALUE;
-                    for (Map.Entry pair : samples.entrySet()) {
-                        long time = (long) pair.getKey();
-                        long count = (long) pair.getValue();
-                        if (time < minTime) {
-                            minTime = time;
-                        }
-                        if (time > maxTime) {
-                            maxTime = time;
-                        }
-                        if (count < minCount) {
-                            minCount = count;
-                        }
-                        if (count > maxCount) {
-                            maxCount = count;
-                        }
-                    }
-                    double avgRate = (double) (maxCount - minCount) / (double) (maxTime - minTime) * 1000.0;
-
-                    if (sendStdout) {
-                        System.out.println("Removing sample: " + t2 + "|" + (cnt2 - startCount));
-                    }
-
-                    // Output Results
-                    long cnt = cnt2 - startCount;
-
-                    double regRate = regression.getSlope() * 1000;  // converting from ms to seconds
-
-                    //if (numSamples > 5) {
-                    //    double rateStdErr = regression.getSlopeStdErr();
-                    //    if (sendStdout) {
-                    //      System.out.format("%d , %.0f, %.4f\n", cnt, regRate, rateStdErr);
-                    //        System.out.format("%d , %.0f\n", cnt, regRate);
-                    //    }
-                    //} else if (numSamples >= 2) {
-                    if (numSamples >= 2) {
-                        if (sendStdout) {
-                            System.out.format("Total Count: %,d | Linear Regression Rate:  %,.0f | Average Rate: %,.0f\n\n", cnt, regRate, avgRate);
-                        }
-                    } else {
-                        if (sendStdout) {
-                            System.out.format("Total Count: %,d | Not enough samples Rate calculations. \n\n", cnt);
-                        }
-                    }
-
-                    // Reset 
-                    cnt1 = -1;
-                    cnt2 = -1;
-                    startCount = 0;
-                    numSamples = 0;
-                    t1 = 0L;
-                    t2 = 0L;
-                    regression = new SimpleRegression();
-
-                }
-
-                cnt2 = cnt1;
-                t2 = t1;
-            } catch (Exception e) {
-                LOG.error("ERROR", e);
-
-            }
-
-        }
-
     }
-    // *****************************************************************
 
-    Timer timer;
+    MonitorEngine engine;
     String brokers;
-    String topic;
+    String[] topics;
+    String group;
     long sampleRate;
     KafkaConsumer<String, String> consumer;
     boolean sendStdout;
 
+    // Offsets by partition, in topic and partition order; the previous sample's for the lag rate
+    Map<TopicPartition, PartitionOffsets> partitions = new LinkedHashMap<>();
+    Map<TopicPartition, PartitionOffsets> previous = new LinkedHashMap<>();
+
     public KafkaTopicMon(String brokers, String topic, long sampleRate, boolean sendStdout) {
+        this(brokers, topic, sampleRate, sendStdout, null);
+    }
+
+    /**
+     * @param topics Comma separated topics
+     * @param group Consumer group to report lag for; null for none
+     */
+    public KafkaTopicMon(String brokers, String topics, long sampleRate, boolean sendStdout, String group) {
 
         try {
             this.brokers = brokers;
-            this.topic = topic;
+            this.topics = topics.split(",");
+            this.group = group;
             this.sampleRate = sampleRate;
             this.sendStdout = sendStdout;
 
@@ -256,10 +117,11 @@ public class KafkaTopicMon {
 
             // https://kafka.apache.org/documentation/#consumerconfigs
             props.put("bootstrap.servers", this.brokers);
-            // Should include another parameter for group.id this would allow differenct consumers of same topic
-            props.put("group.id", "abc");
-            props.put("enable.auto.commit", "true");
-            props.put("auto.commit.interval.ms", 1000);
+            // The consumer never subscribes or commits; the group.id is only used to read the group's committed offsets
+            if (group != null) {
+                props.put("group.id", group);
+            }
+            props.put("enable.auto.commit", "false");
             props.put("auto.offset.reset", "earliest");
             props.put("session.timeout.ms", "10000");
             props.put("request.timeout.ms", "11000");
@@ -268,23 +130,13 @@ public class KafkaTopicMon {
 
             consumer = new KafkaConsumer<>(props);
 
-            boolean topicFound = false;
-
-            Iterator<String> tps = consumer.listTopics().keySet().iterator();
-            while (tps.hasNext()) {
-
-                String tp = tps.next();
-                LOG.info(tp);
-                if (this.topic.equals(tp)) {
-                    topicFound = true;
-                    break;
+            Set<String> found = consumer.listTopics().keySet();
+            LOG.info(found);
+            for (String topic : this.topics) {
+                if (!found.contains(topic)) {
+                    System.out.println("Topic not found: " + topic);
+                    System.exit(-2);
                 }
-
-            }
-
-            if (!topicFound) {
-                System.out.println("Topic not found");
-                System.exit(-2);
             }
 
         } catch (TimeoutException e) {
@@ -298,11 +150,128 @@ public class KafkaTopicMon {
 
     }
 
+    @Override
+    public String getName() {
+        return String.join(",", topics);
+    }
+
+    /**
+     * @return Sum of the end offsets of all partitions of the topics
+     */
+    @Override
+    public long count() {
+        readOffsets();
+        long cnt = 0;
+        for (PartitionOffsets offsets : partitions.values()) {
+            cnt += offsets.end;
+        }
+        return cnt;
+    }
+
+    /**
+     * Reads the end offsets of all partitions in one request.
+     * Partitions added to a topic are picked up from the consumer's metadata.
+     */
+    void readOffsets() {
+        List<TopicPartition> tps = new ArrayList<>();
+        for (String topic : topics) {
+            for (PartitionInfo p : consumer.partitionsFor(topic)) {
+                tps.add(new TopicPartition(topic, p.partition()));
+            }
+        }
+
+        Map<TopicPartition, Long> ends = consumer.endOffsets(tps);
+        long t = System.currentTimeMillis();
+
+        Map<TopicPartition, PartitionOffsets> current = new LinkedHashMap<>();
+        for (TopicPartition tp : tps) {
+            PartitionOffsets last = partitions.get(tp);
+            PartitionOffsets offsets = new PartitionOffsets();
+            offsets.end = ends.get(tp);
+            offsets.time = t;
+            if (last != null && t > last.time) {
+                offsets.produceRate = (offsets.end - last.end) * 1000.0 / (t - last.time);
+            }
+            current.put(tp, offsets);
+        }
+        previous = partitions;
+        partitions = current;
+    }
+
+    /**
+     * Reads the beginning offsets of the partitions of the last count in one request, and the committed offsets of the group.
+     */
+    void readCommitted() {
+        Map<TopicPartition, Long> begins = consumer.beginningOffsets(partitions.keySet());
+        for (Map.Entry<TopicPartition, PartitionOffsets> e : partitions.entrySet()) {
+            // kafka-clients 0.11 has no call for the offsets of many partitions; each is a request to the group coordinator
+            OffsetAndMetadata om = consumer.committed(e.getKey());
+            PartitionOffsets offsets = e.getValue();
+            offsets.begin = begins.getOrDefault(e.getKey(), 0L);
+            offsets.committed = om == null ? -1 : om.offset();
+
+            PartitionOffsets last = previous.get(e.getKey());
+            if (last != null && offsets.time > last.time) {
+                offsets.lagRate = (offsets.lag() - last.lag()) * 1000.0 / (offsets.time - last.time);
+            }
+        }
+    }
+
+    /**
+     * @return partition lines every sample when there is a group; otherwise while the count is changing on more than one partition
+     */
+    @Override
+    public String summary() {
+        if (group != null) {
+            readCommitted();
+        } else {
+            double rate = 0;
+            for (PartitionOffsets o : partitions.values()) {
+                rate += o.produceRate;
+            }
+            if (partitions.size() < 2 || rate <= 0) {
+                return "";
+            }
+        }
+        return partitionSummary();
+    }
+
+    /**
+     * @return offsets and rates of each partition from the last count, and the total lag of the group
+     */
+    String partitionSummary() {
+        StringBuilder out = new StringBuilder();
+        long totalLag = 0;
+        double totalLagRate = 0;
+        int behind = 0;
+        for (Map.Entry<TopicPartition, PartitionOffsets> e : partitions.entrySet()) {
+            PartitionOffsets o = e.getValue();
+            if (group == null) {
+                out.append(String.format("  %s-%d | end: %,d | rate: %,.0f\n", e.getKey().topic(), e.getKey().partition(), o.end, o.produceRate));
+                continue;
+            }
+            totalLag += o.lag();
+            totalLagRate += o.lagRate;
+            // a partition whose lag grows is not keeping up with the sender
+            String mark = "";
+            if (o.lagRate > 0) {
+                behind += 1;
+                mark = " <- falling behind";
+            }
+            out.append(String.format("  %s-%d | end: %,d | rate: %,.0f | committed: %,d | lag: %,d | lag rate: %+,.0f%s\n", e.getKey().topic(), e.getKey().partition(),
+                    o.end, o.produceRate, o.committed, o.lag(), o.lagRate, mark));
+        }
+        if (group != null) {
+            out.append(String.format("Group %s | Lag: %,d | Lag Rate: %+,.0f | Falling behind on %d of %d partitions\n", group, totalLag, totalLagRate, behind, partitions.size()));
+        }
+        return out.toString();
+    }
+
     public void run() {
         try {
 
-            timer = new Timer();
-            timer.schedule(new CheckCount(), 0, sampleRate * 1000);
+            engine = new MonitorEngine((int) sampleRate).add(this);
+            engine.start();
 
         } catch (Exception e) {
             LOG.error("ERROR", e);
@@ -316,20 +285,24 @@ public class KafkaTopicMon {
         String topic = "";
         int sampleRateSec = 5; // default to 5 seconds.
         Boolean sendStdout = true;
+        String group = null;
 
         LOG.info("Entering application.");
         int numargs = args.length;
-        if (numargs != 2 && numargs != 3) {
-            System.err.println("Usage: KakfaTopicMon [brokers] [topic] (sampleRateSec)");
-            System.err.println("Example Command: java -cp target/pth.jar com.esri.rttest.mon.KafkaTopicMon broker.kafka.l4lb.thisdcos.directory:9092 planes 30");
+        if (numargs < 2 || numargs > 4) {
+            System.err.println("Usage: KakfaTopicMon [brokers] [topic[,topic...]] (sampleRateSec) (consumerGroup)");
+            System.err.println("Example Command: java -cp target/pth.jar com.esri.rttest.mon.KafkaTopicMon broker.kafka.l4lb.thisdcos.directory:9092 planes 30 planes-group1");
         } else {
             broker = args[0];
             topic = args[1];
-            if (numargs == 3) {
+            if (numargs >= 3) {
                 sampleRateSec = Integer.parseInt(args[2]);
             }
+            if (numargs == 4) {
+                group = args[3];
+            }
 
-            KafkaTopicMon ktm = new KafkaTopicMon(broker, topic, sampleRateSec, sendStdout);
+            KafkaTopicMon ktm = new KafkaTopicMon(broker, topic, sampleRateSec, sendStdout, group);
             ktm.run();
         }
 
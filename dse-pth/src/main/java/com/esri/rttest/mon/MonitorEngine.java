@@ -0,0 +1,287 @@
+/*
+ * (C) Copyright 2017 David Jennings
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     David Jennings
+ */
+/**
+ * Watches any number of count sources from one process.
+ * One scheduler thread starts a count of every source each sampleRateSec; the counts run on
+ * a pool of worker threads so a slow source does not delay the samples of the others.
+ * A source whose previous count is still running skips the sample.
+ * Sample times are the middle of the count, taken from System.nanoTime.
+ * With -Dpth.metrics.port the last count, rates, errors and skipped samples of every source
+ * are served for Prometheus (see Metrics).
+ *
+ * Creator: David Jennings
+ */
+package com.esri.rttest.mon;
+
+import com.esri.rttest.Metrics;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class MonitorEngine {
+
+    private static final Logger LOG = LogManager.getLogger(MonitorEngine.class);
+
+    /**
+     * A source and the rate state of its counts.
+     */
+    static class Target {
+        final String name;
+        final CountSource source;
+        final RateTracker tracker = new RateTracker();
+        final AtomicBoolean busy = new AtomicBoolean();
+
+        // Last values for the metrics; written by the worker, read by a scrape
+        volatile long count = -1;
+        volatile double windowRate = Double.NaN;
+        volatile double ewmaRate = Double.NaN;
+        volatile double instantRate = Double.NaN;
+        final AtomicLong errors = new AtomicLong();
+        final AtomicLong skipped = new AtomicLong();
+
+        Target(String name, CountSource source) {
+            this.name = name;
+            this.source = source;
+        }
+    }
+
+    final int sampleRateSec;
+    final List<Target> targets = new ArrayList<>();
+    ScheduledExecutorService scheduler;
+    ExecutorService workers;
+    final Metrics.Collector collector = this::collect;
+
+    // Sample times are epoch ms at start plus nanoTime elapsed, so they do not jump with the wall clock
+    final long startMillis = System.currentTimeMillis();
+    final long startNanos = System.nanoTime();
+
+    public MonitorEngine(int sampleRateSec) {
+        this.sampleRateSec = sampleRateSec;
+    }
+
+    public MonitorEngine add(CountSource source) {
+        return add(source.getName(), source);
+    }
+
+    public MonitorEngine add(String name, CountSource source) {
+        targets.add(new Target(name, source));
+        return this;
+    }
+
+    public void start() {
+        // the scheduler thread keeps the JVM running, as the Timer did
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> new Thread(r, "monitor-scheduler"));
+        workers = Executors.newCachedThreadPool(daemonThreads("monitor-count"));
+
+        System.out.println("Watching for changes in count...  Use Ctrl-C to Exit.");
+
+        // Spread the sources over the sample period so their counts do not all start together
+        long periodNanos = TimeUnit.SECONDS.toNanos(sampleRateSec);
+        for (int i = 0; i < targets.size(); i++) {
+            Target target = targets.get(i);
+            scheduler.scheduleAtFixedRate(() -> tick(target), periodNanos * i / targets.size(), periodNanos, TimeUnit.NANOSECONDS);
+        }
+
+        Metrics.register(collector);
+
+        // add the shutdown hook
+        Runtime.getRuntime().addShutdownHook(new Thread(this::close));
+    }
+
+    void tick(Target target) {
+        if (!target.busy.compareAndSet(false, true)) {
+            target.skipped.incrementAndGet();
+            LOG.warn(target.name + ": previous count still running; skipping sample");
+            return;
+        }
+        workers.execute(() -> {
+            try {
+                sample(target);
+            } catch (Exception e) {
+                target.errors.incrementAndGet();
+                if (!workers.isShutdown()) {
+                    LOG.error("ERROR " + target.name, e);
+                }
+            } finally {
+                target.busy.set(false);
+            }
+        });
+    }
+
+    void sample(Target target) throws Exception {
+        LOG.info("Checking Count " + target.name);
+
+        long st = System.nanoTime();
+        long cnt = target.source.count();
+        long t = startMillis + TimeUnit.NANOSECONDS.toMillis((st + System.nanoTime()) / 2 - startNanos);
+
+        String lines = target.tracker.add(t, cnt, target.source.sampleColumns()) + target.source.summary();
+        output(target, lines);
+
+        RateEstimator estimator = target.tracker.estimator;
+        target.windowRate = estimator.windowRate();
+        target.ewmaRate = estimator.ewmaRate();
+        target.instantRate = estimator.instantRate();
+        target.count = cnt;
+    }
+
+    /**
+     * Prints the lines of one sample together; with more than one source each line starts with the source name.
+     */
+    void output(Target target, String lines) {
+        if (lines.isEmpty()) {
+            return;
+        }
+        StringBuilder out = new StringBuilder();
+        for (String line : lines.split("\n")) {
+            if (line.isEmpty()) {
+                continue;
+            }
+            if (targets.size() > 1) {
+                out.append(target.name).append(",");
+            }
+            out.append(line).append("\n");
+        }
+        System.out.print(out);
+    }
+
+    /**
+     * Writes the last count and rates of every source for a metrics scrape.
+     */
+    void collect(StringBuilder out) {
+        Metrics.header(out, "pth_monitor_count", "gauge", "Last count of the source");
+        for (Target target : targets) {
+            if (target.count >= 0) {
+                Metrics.sample(out, "pth_monitor_count", target.count, "source", target.name);
+            }
+        }
+        Metrics.header(out, "pth_monitor_rate", "gauge", "Rate /s of the source; window regression, EWMA or between the last two samples");
+        for (Target target : targets) {
+            Metrics.sample(out, "pth_monitor_rate", target.windowRate, "source", target.name, "kind", "window");
+            Metrics.sample(out, "pth_monitor_rate", target.ewmaRate, "source", target.name, "kind", "ewma");
+            Metrics.sample(out, "pth_monitor_rate", target.instantRate, "source", target.name, "kind", "instant");
+        }
+        Metrics.header(out, "pth_monitor_errors_total", "counter", "Counts of the source that failed");
+        for (Target target : targets) {
+            Metrics.sample(out, "pth_monitor_errors_total", target.errors.get(), "source", target.name);
+        }
+        Metrics.header(out, "pth_monitor_skipped_total", "counter", "Samples skipped because the previous count was still running");
+        for (Target target : targets) {
+            Metrics.sample(out, "pth_monitor_skipped_total", target.skipped.get(), "source", target.name);
+        }
+    }
+
+    public void close() {
+        Metrics.unregister(collector);
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
+        if (workers != null) {
+            workers.shutdownNow();
+        }
+        for (Target target : targets) {
+            try {
+                target.source.close();
+            } catch (Exception e) {
+                LOG.error("ERROR", e);
+            }
+        }
+    }
+
+    static ThreadFactory daemonThreads(String name) {
+        AtomicInteger n = new AtomicInteger();
+        return r -> {
+            Thread t = new Thread(r, name + "-" + n.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        };
+    }
+
+    /**
+     * Creates a source from its JSON description:
+     * {"type": "kafka", "brokers": ..., "topic": ..., "group": ...},
+     * {"type": "cassandra", "host": ..., "keyspace": ..., "table": ..., "username": ..., "password": ..., "mode": ...} or
+     * {"type": "solr", "url": ..., "username": ..., "password": ...}
+     */
+    public static CountSource createSource(JSONObject json) {
+        String type = json.getString("type");
+        switch (type) {
+            case "kafka":
+                return new KafkaTopicMon(json.getString("brokers"), json.getString("topic"), 0, false, json.optString("group", null));
+            case "cassandra":
+                // mode as on the CassandraMon command line: ranges[:maxConcurrent], count, sample[:numRanges] or size_estimates
+                String[] modeParts = json.optString("mode", "ranges").split(":");
+                int maxConcurrent = 32;
+                int sampleSize = 64;
+                if (modeParts.length > 1 && modeParts[0].equals("sample")) {
+                    sampleSize = Integer.parseInt(modeParts[1]);
+                } else if (modeParts.length > 1) {
+                    maxConcurrent = Integer.parseInt(modeParts[1]);
+                }
+                return new CassandraMon(json.getString("host"), json.getString("keyspace"), json.getString("table"),
+                        0, json.optString("username", ""), json.optString("password", ""), false,
+                        modeParts[0], maxConcurrent, sampleSize);
+            case "solr":
+                return new SolrIndexMon(json.getString("url"), 0, json.optString("username", ""), json.optString("password", ""), false);
+            default:
+                throw new IllegalArgumentException("Unknown monitor type: " + type);
+        }
+    }
+
+    public static void main(String[] args) {
+
+        LOG.info("Entering application.");
+        if (args.length != 1) {
+            System.err.println("Usage: MonitorEngine [sources.json]");
+            System.err.println("Example: java -cp target/pth.jar com.esri.rttest.mon.MonitorEngine monitors.json");
+        } else {
+            try {
+                JSONObject plan = new JSONObject(new String(Files.readAllBytes(Paths.get(args[0])), StandardCharsets.UTF_8));
+
+                MonitorEngine engine = new MonitorEngine(plan.optInt("sampleRateSec", 5));
+                JSONArray sources = plan.getJSONArray("sources");
+                for (int i = 0; i < sources.length(); i++) {
+                    JSONObject json = sources.getJSONObject(i);
+                    CountSource source = createSource(json);
+                    engine.add(json.optString("name", source.getName()), source);
+                }
+                engine.start();
+
+            } catch (Exception e) {
+                LOG.error("ERROR", e);
+            }
+        }
+
+    }
+}
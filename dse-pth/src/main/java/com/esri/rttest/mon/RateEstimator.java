@@ -0,0 +1,230 @@
+/*
+ * (C) Copyright 2017 David Jennings
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     David Jennings
+ */
+/**
+ * Rates from a stream of (time, count) samples in constant memory.
+ * The last window samples are kept in a ring of primitives for the windowed regression rate.
+ * The rate between the last two samples and an EWMA of it are kept as well.
+ * The regression over the whole run is updated online (Welford), so runs of any length
+ * need no more memory than the ring.
+ *
+ * Creator: David Jennings
+ */
+package com.esri.rttest.mon;
+
+public class RateEstimator {
+
+    // Ring of the last samples; head is the next slot to write
+    private final long[] times;
+    private final long[] counts;
+    private int head;
+    private int size;
+
+    private final double alpha;
+    private double ewma = Double.NaN;
+    private double instant = Double.NaN;
+
+    // Regression over the whole run; x is ms since the first sample, y the count since the first sample
+    private long t0;
+    private long c0;
+    private long n;
+    private double meanX;
+    private double meanY;
+    private double sxx;
+    private double syy;
+    private double sxy;
+
+    /**
+     * @param window Number of samples in the windowed regression
+     */
+    public RateEstimator(int window) {
+        this.times = new long[window];
+        this.counts = new long[window];
+        // the EWMA has about the same memory as the window
+        this.alpha = 2.0 / (window + 1);
+    }
+
+    void reset() {
+        head = 0;
+        size = 0;
+        ewma = Double.NaN;
+        instant = Double.NaN;
+        n = 0;
+        meanX = 0;
+        meanY = 0;
+        sxx = 0;
+        syy = 0;
+        sxy = 0;
+    }
+
+    /**
+     * @param t Time of the sample in ms
+     * @param cnt Count at that time
+     */
+    public void add(long t, long cnt) {
+        if (size > 0) {
+            int last = (head + times.length - 1) % times.length;
+            if (t > times[last]) {
+                instant = (cnt - counts[last]) * 1000.0 / (t - times[last]);
+                ewma = Double.isNaN(ewma) ? instant : ewma + alpha * (instant - ewma);
+            }
+        }
+
+        times[head] = t;
+        counts[head] = cnt;
+        head = (head + 1) % times.length;
+        size = Math.min(size + 1, times.length);
+
+        if (n == 0) {
+            t0 = t;
+            c0 = cnt;
+        }
+        double x = t - t0;
+        double y = cnt - c0;
+        n += 1;
+        double dx = x - meanX;
+        double dy = y - meanY;
+        meanX += dx / n;
+        meanY += dy / n;
+        sxx += dx * (x - meanX);
+        syy += dy * (y - meanY);
+        sxy += dx * (y - meanY);
+    }
+
+    /**
+     * Takes a sample back out of the whole run regression; the window and EWMA are not changed.
+     */
+    void removeFromRun(long t, long cnt) {
+        if (n <= 1) {
+            n = 0;
+            meanX = 0;
+            meanY = 0;
+            sxx = 0;
+            syy = 0;
+            sxy = 0;
+            return;
+        }
+        double x = t - t0;
+        double y = cnt - c0;
+        double prevMeanX = (n * meanX - x) / (n - 1);
+        double prevMeanY = (n * meanY - y) / (n - 1);
+        sxx -= (x - prevMeanX) * (x - meanX);
+        syy -= (y - prevMeanY) * (y - meanY);
+        sxy -= (x - prevMeanX) * (y - meanY);
+        meanX = prevMeanX;
+        meanY = prevMeanY;
+        n -= 1;
+    }
+
+    /**
+     * @return Samples in the window
+     */
+    int getWindowSize() {
+        return size;
+    }
+
+    boolean isWindowFull() {
+        return size == times.length;
+    }
+
+    /**
+     * @return Regression rate /s over the samples in the window; NaN with fewer than two
+     */
+    double windowRate() {
+        if (size < 2) {
+            return Double.NaN;
+        }
+        // times relative to the oldest sample in the window keep the sums small
+        int oldest = (head + times.length - size) % times.length;
+        double mx = 0;
+        double my = 0;
+        for (int i = 0; i < size; i++) {
+            int j = (oldest + i) % times.length;
+            mx += times[j] - times[oldest];
+            my += counts[j] - counts[oldest];
+        }
+        mx /= size;
+        my /= size;
+        double wxx = 0;
+        double wxy = 0;
+        for (int i = 0; i < size; i++) {
+            int j = (oldest + i) % times.length;
+            double dx = times[j] - times[oldest] - mx;
+            wxx += dx * dx;
+            wxy += dx * (counts[j] - counts[oldest] - my);
+        }
+        return wxx > 0 ? wxy / wxx * 1000.0 : Double.NaN;
+    }
+
+    /**
+     * @return Change of the rate from the older half of the window to the newer half, relative to the older half; NaN with fewer than three samples
+     */
+    double windowChange() {
+        if (size < 3) {
+            return Double.NaN;
+        }
+        int oldest = (head + times.length - size) % times.length;
+        int mid = (oldest + size / 2) % times.length;
+        int newest = (head + times.length - 1) % times.length;
+        if (times[mid] <= times[oldest] || times[newest] <= times[mid]) {
+            return Double.NaN;
+        }
+        double older = (double) (counts[mid] - counts[oldest]) / (times[mid] - times[oldest]);
+        double newer = (double) (counts[newest] - counts[mid]) / (times[newest] - times[mid]);
+        return (newer - older) / Math.max(Math.abs(older), 1e-9);
+    }
+
+    /**
+     * @return Rate /s between the last two samples
+     */
+    double instantRate() {
+        return instant;
+    }
+
+    /**
+     * @return Exponentially weighted moving average of the instant rates
+     */
+    double ewmaRate() {
+        return ewma;
+    }
+
+    /**
+     * @return Number of samples in the whole run regression
+     */
+    public long getRunSamples() {
+        return n;
+    }
+
+    /**
+     * @return Regression rate /s over the whole run
+     */
+    public double runRate() {
+        return n > 1 && sxx > 0 ? sxy / sxx * 1000.0 : Double.NaN;
+    }
+
+    /**
+     * @return Standard error of the whole run rate /s
+     */
+    public double runRateStdErr() {
+        if (n <= 2 || sxx <= 0) {
+            return Double.NaN;
+        }
+        double sse = Math.max(0, syy - sxy * sxy / sxx);
+        return Math.sqrt(sse / (n - 2) / sxx) * 1000.0;
+    }
+}
@@ -0,0 +1,176 @@
+/*
+ * (C) Copyright 2017 David Jennings
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     David Jennings
+ */
+/**
+ * Turns the counts of one source into rates.
+ * When the count changes a run starts; every sample of the run outputs the windowed regression
+ * rate, an EWMA and the instantaneous rate, so changes show up while the run is going.
+ * During the run it reports when the count stalls or resumes, when the rate levels off and
+ * when it drops well below its peak.
+ * After the count has not changed for END_SAMPLES samples the run ends with the count and the
+ * regression rate of the whole run; then it waits for the next change.
+ * A count that goes down starts over.
+ *
+ * Creator: David Jennings
+ */
+package com.esri.rttest.mon;
+
+class RateTracker {
+
+    // Samples in the windowed regression
+    static final int WINDOW = 12;
+
+    // Unchanged samples in a row that end a run
+    static final int END_SAMPLES = 3;
+
+    // The rate is steady when the two halves of the window differ by at most this, and changing again beyond twice this
+    static final double STEADY = 0.05;
+
+    // The rate has dropped when the window rate is this far below the peak, and recovered within half of this
+    static final double DROP = 0.2;
+
+    final RateEstimator estimator = new RateEstimator(WINDOW);
+
+    long cnt2 = -1;
+    long t2 = 0L;
+    long startCount = 0;
+    int numSamples = 0;
+    int stalledSamples = 0;
+    double peakRate = 0;
+    boolean steady = false;
+    boolean dropped = false;
+
+    /**
+     * @param t Time of the count in ms
+     * @param cnt Count
+     * @param columns Appended to the sample line
+     * @return Lines to output for this count; empty when there is nothing to report
+     */
+    String add(long t, long cnt, String columns) {
+        StringBuilder out = new StringBuilder();
+
+        if (cnt2 == -1 || cnt < cnt2) {
+            start(cnt);
+
+        } else if (cnt > cnt2) {
+            if (stalledSamples > 0 && numSamples > 0) {
+                out.append(String.format("Resumed: count changing again after %d s\n", (t - t2) / 1000));
+            }
+            stalledSamples = 0;
+
+            estimator.add(t, cnt);
+            numSamples += 1;
+
+            double windowRate = estimator.windowRate();
+            out.append(String.format("%d,%d,%d,%s,%s,%s%s\n", numSamples, t, cnt,
+                    format(windowRate), format(estimator.ewmaRate()), format(estimator.instantRate()), columns));
+            out.append(events(windowRate));
+
+            // the sample before a stall is kept for removal at the end of the run
+            cnt2 = cnt;
+            t2 = t;
+
+        } else if (cnt == cnt2 && numSamples > 0) {
+            stalledSamples += 1;
+            if (stalledSamples == 1) {
+                out.append(String.format("Stalled: no change since %d\n", t2));
+            }
+            if (stalledSamples >= END_SAMPLES) {
+                out.append(end(cnt));
+            }
+        }
+
+        if (numSamples == 0) {
+            cnt2 = cnt;
+            t2 = t;
+        }
+        return out.toString();
+    }
+
+    private void start(long cnt) {
+        startCount = cnt;
+        estimator.reset();
+        numSamples = 0;
+        stalledSamples = 0;
+        peakRate = 0;
+        steady = false;
+        dropped = false;
+    }
+
+    /**
+     * @return lines for the rate levelling off or dropping; only when that changes
+     */
+    private String events(double windowRate) {
+        if (Double.isNaN(windowRate) || estimator.getWindowSize() < WINDOW / 2) {
+            return "";
+        }
+        StringBuilder out = new StringBuilder();
+
+        double diff = Math.abs(estimator.windowChange());
+        if (!steady && estimator.isWindowFull() && diff <= STEADY) {
+            steady = true;
+            out.append(String.format("Plateau: rate steady at %.0f\n", windowRate));
+        } else if (steady && diff > 2 * STEADY) {
+            steady = false;
+            out.append(String.format("Rate changing: %.0f\n", windowRate));
+        }
+
+        peakRate = Math.max(peakRate, windowRate);
+        if (!dropped && windowRate < peakRate * (1 - DROP)) {
+            dropped = true;
+            out.append(String.format("Rate drop: %.0f is %.0f%% below the peak of %.0f\n", windowRate, (1 - windowRate / peakRate) * 100, peakRate));
+        } else if (dropped && windowRate >= peakRate * (1 - DROP / 2)) {
+            dropped = false;
+            out.append(String.format("Rate recovered: %.0f\n", windowRate));
+        }
+        return out.toString();
+    }
+
+    /**
+     * @return rate with no decimals; empty when there is none yet
+     */
+    private static String format(double rate) {
+        return Double.isNaN(rate) ? "" : String.format("%.0f", rate);
+    }
+
+    /**
+     * @return lines ending the run: the count and the regression rate over the whole run
+     */
+    private String end(long cnt) {
+        StringBuilder out = new StringBuilder();
+
+        // The last sample was taken while the count was stopping
+        estimator.removeFromRun(t2, cnt2);
+        out.append("Removing: ").append(t2).append(",").append(cnt2).append("\n");
+
+        long total = cnt2 - startCount;
+        double rcvRate = estimator.runRate();
+        long runSamples = estimator.getRunSamples();
+        if (runSamples > 5) {
+            out.append(String.format("%d , %.2f, %.4f\n", total, rcvRate, estimator.runRateStdErr()));
+        } else if (runSamples >= 2) {
+            out.append(String.format("%d , %.2f\n", total, rcvRate));
+        } else {
+            out.append("Not enough samples to calculate rate. \n");
+        }
+
+        // the next change starts from this count
+        start(cnt);
+        return out.toString();
+    }
+}
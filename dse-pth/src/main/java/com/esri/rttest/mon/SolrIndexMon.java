@@ -21,13 +21,12 @@
  * Periodically does a count and when count is changing collects samples.
  * After three samples are made outputs rates based on linear regression.
  * After counts stop changing outputs the final rate and last estimated rate.
+ * The sampling and rates are done by MonitorEngine.
  *
  * Creator: David Jennings
  */
 package com.esri.rttest.mon;
 
-import org.apache.commons.math3.stat.regression.SimpleRegression;
-import org.apache.http.Header;
 import org.apache.http.auth.AuthScope;
 import org.apache.http.auth.UsernamePasswordCredentials;
 import org.apache.http.client.CredentialsProvider;
@@ -37,6 +36,7 @@ import org.apache.http.conn.ssl.NoopHostnameVerifier;
 import org.apache.http.impl.client.BasicCredentialsProvider;
 import org.apache.http.impl.client.CloseableHttpClient;
 import org.apache.http.impl.client.HttpClients;
+import org.apache.http.util.EntityUtils;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.json.JSONException;
@@ -45,223 +45,255 @@ import org.json.JSONObject;
 import javax.net.ssl.SSLContext;
 import javax.net.ssl.TrustManager;
 import javax.net.ssl.X509TrustManager;
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
 import java.security.KeyManagementException;
 import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
 import java.security.cert.X509Certificate;
-import java.util.HashMap;
-import java.util.Timer;
-import java.util.TimerTask;
-
-public class SolrIndexMon
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+public class SolrIndexMon implements CountSource
 {
 
     private static final Logger LOG = LogManager.getLogger(SolrIndexMon.class);
 
-    class CheckCount extends TimerTask {
-
-        long cnt1;
-        long cnt2;
-        long startCount;
-        long endCount;
-        int numSamples;
-        HashMap<Long, Long> samples;
-        long t1;
-        long t2;
-        SimpleRegression regression;
-
-        public CheckCount() {
-            regression = new SimpleRegression();
-            cnt1 = 0;
-            cnt2 = -1;
-            startCount = 0;
-            numSamples = 0;
-            t1 = 0L;
-            t2 = 0L;
-            samples = null;
-        }
+    MonitorEngine engine;
+    String solrSearchUrl;
+    String user;
+    String userpw;
+    int sampleRateSec;
+    boolean sendStdout;
 
-        boolean inCounting() {
-            if (cnt1 > 0) {
-                return true;
-            } else {
-                return false;
-            }
-        }
+    // One URL per core when counting shards; a single URL counts the whole collection
+    String[] coreUrls;
+    ExecutorService shardExecutor;
 
-        HashMap<Long, Long> getSamples() {
-            return samples;
-        }
+    // Per core counts of the last sample and the one before, for the per core rates
+    long[] shardCounts;
+    long[] prevShardCounts;
+    long prevCountTime;
+
+    // System time in ms half way through the last count
+    volatile long lastCountTime;
+
+    /**
+     * @param solrSearchUrl Collection URL, or comma separated core URLs to count each core with distrib=false
+     */
+    public SolrIndexMon(String solrSearchUrl, int sampleRateSec, String user, String userpw, boolean sendStdout) {
 
-        long getStartCount() {
-            return startCount;
+        this.solrSearchUrl = solrSearchUrl;
+        this.sampleRateSec = sampleRateSec;
+        this.user = user;
+        this.userpw = userpw;
+        this.sendStdout = sendStdout;
+
+        this.coreUrls = solrSearchUrl.split(",");
+        if (coreUrls.length > 1) {
+            shardExecutor = Executors.newFixedThreadPool(coreUrls.length, r -> {
+                Thread t = new Thread(r, "solr-shard-count");
+                t.setDaemon(true);
+                return t;
+            });
+            shardCounts = new long[coreUrls.length];
         }
 
-        long getEndCount() {
-            return endCount;
+        // add the shutdown hook
+        Runtime.getRuntime().addShutdownHook(new Thread(this::close));
+    }
+
+    // Body of the last count response; logged when it can not be parsed
+    volatile String lastResponse;
+
+    private CloseableHttpClient httpclient = null;
+
+    /**
+     * Creates the client on first use; it is kept for the life of the monitor so connections
+     * (and TLS sessions) are reused between samples.
+     */
+    private synchronized CloseableHttpClient createOrGetHttpClient() throws KeyManagementException, NoSuchAlgorithmException {
+        if (httpclient == null) {
+            // one connection per core is enough as counts of a core never overlap
+            httpclient = createHttpClient(user, userpw, coreUrls.length, sendStdout);
         }
+        return httpclient;
+    }
+
+    /**
+     * Builds a pooled keep-alive client that sends the credentials and accepts any certificate.
+     *
+     * @param maxConnPerRoute Connections kept open to each host
+     */
+    public static CloseableHttpClient createHttpClient(String user, String userpw, int maxConnPerRoute, boolean sendStdout) throws KeyManagementException, NoSuchAlgorithmException {
+        SSLContext sslContext = SSLContext.getInstance("SSL");
+
+        CredentialsProvider provider = new BasicCredentialsProvider();
+        UsernamePasswordCredentials credentials
+                = new UsernamePasswordCredentials(user, userpw);
+        provider.setCredentials(AuthScope.ANY, credentials);
+
+        sslContext.init(null, new TrustManager[]{new X509TrustManager() {
+            @Override
+            public X509Certificate[] getAcceptedIssuers() {
+                if (sendStdout) {
+                    System.out.println("getAcceptedIssuers =============");
+                }
+                return null;
+            }
 
-        @Override
-        public void run() {
-            String lastResponse = null;
-            try {
-
-                LOG.info("Checking Count");
-
-                // Solr Collection URL
-                String url = solrSearchUrl + "/select?q=*:*&wt=json&rows=0";
-                SSLContext sslContext = SSLContext.getInstance("SSL");
-
-                CredentialsProvider provider = new BasicCredentialsProvider();
-                UsernamePasswordCredentials credentials
-                        = new UsernamePasswordCredentials(user, userpw);
-                provider.setCredentials(AuthScope.ANY, credentials);
-
-                sslContext.init(null, new TrustManager[]{new X509TrustManager() {
-                    @Override
-                    public X509Certificate[] getAcceptedIssuers() {
-                        if (sendStdout) {
-                            System.out.println("getAcceptedIssuers =============");
-                        }
-                        return null;
-                    }
-
-                    @Override
-                    public void checkClientTrusted(X509Certificate[] certs,
-                            String authType) {
-                        if (sendStdout) {
-                            System.out.println("checkClientTrusted =============");
-                        }
-                    }
-
-                    @Override
-                    public void checkServerTrusted(X509Certificate[] certs,
-                            String authType) {
-                        if (sendStdout) {
-                            System.out.println("checkServerTrusted =============");
-                        }
-                    }
-                }}, new SecureRandom());
-
-                CloseableHttpClient httpclient = HttpClients
-                        .custom()
-                        .setDefaultCredentialsProvider(provider)
-                        .setSSLContext(sslContext)
-                        .setSSLHostnameVerifier(NoopHostnameVerifier.INSTANCE)
-                        .build();
-
-                HttpGet request = new HttpGet(url);
-                CloseableHttpResponse response = httpclient.execute(request);
-                BufferedReader rd = new BufferedReader(new InputStreamReader(response.getEntity().getContent()));
-
-                //Header contentType = response.getEntity().getContentType();
-                //String ct = contentType.getValue().split(";")[0];
-
-                //int responseCode = response.getStatusLine().getStatusCode();
-
-                String line;
-                StringBuilder result = new StringBuilder();
-                while ((line = rd.readLine()) != null) {
-                    result.append(line);
+            @Override
+            public void checkClientTrusted(X509Certificate[] certs,
+                    String authType) {
+                if (sendStdout) {
+                    System.out.println("checkClientTrusted =============");
                 }
-                lastResponse = result.toString();
-
-                JSONObject json = new JSONObject(lastResponse);
-                request.abort();
-                response.close();
-
-                cnt1 = json.getJSONObject("response").getInt("numFound");
-                t1 = System.currentTimeMillis();
-
-                if (cnt2 == -1 || cnt1 < cnt2) {
-                    cnt2 = cnt1;
-                    startCount = cnt1;
-                    endCount = cnt1;
-                    regression = new SimpleRegression();
-                    samples = new HashMap<>();
-                    numSamples = 0;
-
-                } else if (cnt1 > cnt2) {
-                    // Add to Linear Regression
-                    regression.addData(t1, cnt1);
-                    samples.put(t1, cnt1);
-                    // Increase number of samples
-                    numSamples += 1;
-                    if (numSamples > 2) {
-                        double rcvRate = regression.getSlope() * 1000;
-                        System.out.format("%d,%d,%d,%.0f\n", numSamples, t1, cnt1, rcvRate);
-                    } else {
-                        System.out.format("%d,%d,%d\n", numSamples, t1, cnt1);
-                    }
-
-                } else if (cnt1 == cnt2 && numSamples > 0) {
-                    numSamples -= 1;
-                    // Remove the last sample
-                    regression.removeData(t2, cnt2);
-                    samples.remove(t2, cnt2);
-                    if (sendStdout) {
-                        System.out.println("Removing: " + t2 + "," + cnt2);
-                    }
-                    // Output Results
-                    long cnt = cnt2 - startCount;
-                    double rcvRate = regression.getSlope() * 1000;  // converting from ms to seconds
-
-                    if (numSamples > 5) {
-                        double rateStdErr = regression.getSlopeStdErr();
-                        if (sendStdout) {
-                            System.out.format("%d , %.2f, %.4f\n", cnt, rcvRate, rateStdErr);
-                        }
-                    } else if (numSamples >= 2) {
-                        if (sendStdout) {
-                            System.out.format("%d , %.2f\n", cnt, rcvRate);
-                        }
-                    } else {
-                        if (sendStdout) {
-                            System.out.println("Not enough samples to calculate rate. ");
-                        }
-                    }
-
-                    // Reset
-                    cnt1 = -1;
-                    cnt2 = -1;
-                    t1 = 0L;
-                    t2 = 0L;
+            }
 
+            @Override
+            public void checkServerTrusted(X509Certificate[] certs,
+                    String authType) {
+                if (sendStdout) {
+                    System.out.println("checkServerTrusted =============");
                 }
+            }
+        }}, new SecureRandom());
+
+        return HttpClients
+                .custom()
+                .setDefaultCredentialsProvider(provider)
+                .setSSLContext(sslContext)
+                .setSSLHostnameVerifier(NoopHostnameVerifier.INSTANCE)
+                .setMaxConnPerRoute(maxConnPerRoute)
+                .setMaxConnTotal(maxConnPerRoute * 2)
+                .build();
+    }
 
-                cnt2 = cnt1;
-                t2 = t1;
+    @Override
+    public String getName() {
+        return solrSearchUrl;
+    }
 
-            } catch (IOException | UnsupportedOperationException | KeyManagementException | NoSuchAlgorithmException | JSONException e) {
-                LOG.error("ERROR. Last Response: " + lastResponse, e);
+    @Override
+    public void close() {
+        try {
+            if (shardExecutor != null) {
+                shardExecutor.shutdownNow();
             }
+            synchronized (this) {
+                if (httpclient != null) {
+                    httpclient.close();
+                    httpclient = null;
+                }
+            }
+        } catch (IOException e) {
+            LOG.error("ERROR", e);
         }
     }
 
-    Timer timer;
-    String solrSearchUrl;
-    String user;
-    String userpw;
-    int sampleRateSec;
-    boolean sendStdout;
+    /**
+     * @return numFound of a query that returns no rows
+     */
+    private long queryCount(String url) throws IOException, KeyManagementException, NoSuchAlgorithmException, JSONException {
+        HttpGet request = new HttpGet(url);
+        // Reading the whole entity returns the connection to the pool
+        try (CloseableHttpResponse response = createOrGetHttpClient().execute(request)) {
+            String body = EntityUtils.toString(response.getEntity());
+            lastResponse = body;
+
+            JSONObject json = new JSONObject(body);
+            return json.getJSONObject("response").getLong("numFound");
+        }
+    }
 
-    public SolrIndexMon(String solrSearchUrl, int sampleRateSec, String user, String userpw, boolean sendStdout) {
+    /**
+     * @return Number of documents in the index; the sum over the cores when counting shards
+     */
+    @Override
+    public long count() throws Exception {
+        try {
+            return countDocuments();
+        } catch (JSONException e) {
+            throw new IOException("Last Response: " + lastResponse, e);
+        }
+    }
 
-        this.solrSearchUrl = solrSearchUrl;
-        this.sampleRateSec = sampleRateSec;
-        this.user = user;
-        this.userpw = userpw;
-        this.sendStdout = sendStdout;
+    private long countDocuments() throws Exception {
+        lastResponse = null;
+
+        long st = System.currentTimeMillis();
+        long cnt = 0;
+        if (coreUrls.length == 1) {
+            // Solr Collection URL
+            cnt = queryCount(solrSearchUrl + "/select?q=*:*&wt=json&rows=0");
+        } else {
+            // Each core counts only its own documents with distrib=false
+            List<Future<Long>> futures = new ArrayList<>();
+            for (String coreUrl : coreUrls) {
+                futures.add(shardExecutor.submit(() -> queryCount(coreUrl + "/select?q=*:*&wt=json&rows=0&distrib=false")));
+            }
+            long[] counts = new long[coreUrls.length];
+            for (int i = 0; i < counts.length; i++) {
+                try {
+                    counts[i] = futures.get(i).get();
+                } catch (ExecutionException e) {
+                    throw new IOException("Count failed for " + coreUrls[i], e.getCause());
+                }
+                cnt += counts[i];
+            }
+            prevShardCounts = shardCounts;
+            shardCounts = counts;
+        }
+        prevCountTime = lastCountTime;
+        lastCountTime = (st + System.currentTimeMillis()) / 2;
+        return cnt;
+    }
+
+    /**
+     * @return per core counts and rates while the count is changing
+     */
+    @Override
+    public String summary() {
+        if (coreUrls.length == 1 || prevShardCounts == null) {
+            return "";
+        }
+        long change = 0;
+        for (int i = 0; i < coreUrls.length; i++) {
+            change += shardCounts[i] - prevShardCounts[i];
+        }
+        return change > 0 ? shardSummary() : "";
+    }
+
+    /**
+     * @return count and rate /s of each core since the previous sample, and the skew (fastest core rate / mean core rate)
+     */
+    String shardSummary() {
+        if (prevShardCounts == null || lastCountTime <= prevCountTime) {
+            return "";
+        }
+        double seconds = (lastCountTime - prevCountTime) / 1000.0;
+        StringBuilder line = new StringBuilder("Cores:");
+        double sum = 0;
+        double max = 0;
+        for (int i = 0; i < coreUrls.length; i++) {
+            double rate = (shardCounts[i] - prevShardCounts[i]) / seconds;
+            sum += rate;
+            max = Math.max(max, rate);
+            line.append(String.format(" %s=%d (%.0f/s)", coreUrls[i], shardCounts[i], rate));
+        }
+        double mean = sum / coreUrls.length;
+        line.append(String.format(" | skew: %.2f", mean > 0 ? max / mean : 0));
+        return line.toString();
     }
 
     public void run() {
         try {
 
-            timer = new Timer();
-            timer.schedule(new SolrIndexMon.CheckCount(), 0, sampleRateSec * 1000);
+            engine = new MonitorEngine(sampleRateSec).add(this);
+            engine.start();
 
         } catch (Exception e) {
             LOG.error("ERROR", e);
@@ -280,7 +312,7 @@ public class SolrIndexMon
         LOG.info("Entering application.");
         int numargs = args.length;
         if (numargs != 1 && numargs != 2 && numargs != 4) {
-            System.err.print("Usage: SolrIndexMon [SolrSearchURL] (sampleRateSec) ((username) (password))  \n");
+            System.err.print("Usage: SolrIndexMon [SolrSearchURL or CoreURL,CoreURL,...] (sampleRateSec) ((username) (password))  \n");
             System.err.println("Example: java -cp target/pth.jar com.esri.rttest.mon.SolrIndexMon http://localhost:8983/solr/realtime.safegraph 20 user pass");
         } else {
             solrSearchUrl = args[0];
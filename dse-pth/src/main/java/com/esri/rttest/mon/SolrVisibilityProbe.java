@@ -0,0 +1,262 @@
+/*
+ * (C) Copyright 2017 David Jennings
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     David Jennings
+ */
+/**
+ * Measures how long a row written to Cassandra takes to become searchable in Solr.
+ * Every intervalMs a marker row with a unique id is written to a probe table next to the
+ * monitored one (tableName_probe, with its own search index), so the markers do not add to
+ * the counts of the monitored table. The probe index is polled every pollMs for all markers
+ * not yet seen (one query for all of them); when a marker is found the time since the write
+ * was sent is recorded, so the write itself is part of the visibility latency.
+ * Writes are asynchronous, so a slow write does not hold up polling.
+ * Markers not found within timeoutMs are counted as lost.
+ *
+ * Output every reportSec: Visibility,Markers Found,p50,p99,max (ms),Pending,Lost
+ *
+ * Creator: David Jennings
+ */
+package com.esri.rttest.mon;
+
+import com.datastax.driver.core.Cluster;
+import com.datastax.driver.core.PreparedStatement;
+import com.datastax.driver.core.ResultSet;
+import com.datastax.driver.core.Session;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.MoreExecutors;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.utils.URIBuilder;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.util.EntityUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.util.Date;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+public class SolrVisibilityProbe {
+
+    private static final Logger LOG = LogManager.getLogger(SolrVisibilityProbe.class);
+
+    // Marker ids start with this so they are easy to find and delete
+    static final String MARKER_PREFIX = "probe-";
+
+    // The probe table and its search index are named after the monitored table with this suffix
+    static final String TABLE_SUFFIX = "_probe";
+
+    private final Session session;
+    private final PreparedStatement insert;
+    private final String solrSearchUrl;
+    private final CloseableHttpClient httpclient;
+    private final long intervalMs;
+    private final long pollMs;
+    private final long timeoutMs;
+    private final int reportSec;
+
+    private final ScheduledExecutorService executor;
+
+    // Markers written and not yet found: id -> System.nanoTime() before the write; failed writes are removed by the driver's callback
+    private final Map<String, Long> pending = new ConcurrentHashMap<>();
+    // only used on the executor thread
+    private long found;
+    private long lost;
+
+    private final Recorder recorder = new Recorder(3);
+    private final Histogram total = new Histogram(3);
+    private Histogram interval;
+
+    /**
+     * @param session       Session used to write the markers; the sender's session when load is running
+     * @param keyspace      Keyspace of the planes table
+     * @param tableName     Planes table with a search index; the markers go to tableName_probe, which is created when missing
+     * @param solrSearchUrl Solr URL of the planes index, e.g. http://localhost:8983/solr/realtime.planes; the probe index is at the same URL with _probe appended
+     * @param user          Solr user; empty when not needed
+     * @param userpw        Solr password
+     * @param intervalMs    Time between markers
+     */
+    public SolrVisibilityProbe(Session session, String keyspace, String tableName, String solrSearchUrl, String user, String userpw, long intervalMs) throws Exception {
+        this.session = session;
+        String probeTable = keyspace + "." + tableName + TABLE_SUFFIX;
+        session.execute("CREATE TABLE IF NOT EXISTS " + probeTable + " (id text PRIMARY KEY, ts timestamp)");
+        session.execute("CREATE SEARCH INDEX IF NOT EXISTS ON " + probeTable + " WITH COLUMNS id, ts");
+        this.insert = session.prepare("INSERT INTO " + probeTable + " (id, ts) VALUES (?, ?)");
+        this.solrSearchUrl = solrSearchUrl.replaceAll("/+$", "") + TABLE_SUFFIX;
+        this.httpclient = SolrIndexMon.createHttpClient(user, userpw, 2, false);
+        this.intervalMs = intervalMs;
+        this.pollMs = 50;
+        this.timeoutMs = 120000;
+        this.reportSec = 5;
+
+        this.executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "solr-visibility-probe");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    public void start() {
+        executor.scheduleAtFixedRate(this::writeMarker, 0, intervalMs, TimeUnit.MILLISECONDS);
+        executor.scheduleWithFixedDelay(this::poll, pollMs, pollMs, TimeUnit.MILLISECONDS);
+        executor.scheduleAtFixedRate(this::report, reportSec, reportSec, TimeUnit.SECONDS);
+    }
+
+    private void writeMarker() {
+        try {
+            String id = MARKER_PREFIX + UUID.randomUUID().toString();
+            pending.put(id, System.nanoTime());
+            Futures.addCallback(session.executeAsync(insert.bind(id, new Date())), new FutureCallback<ResultSet>() {
+                @Override
+                public void onSuccess(ResultSet result) {
+                }
+
+                @Override
+                public void onFailure(Throwable t) {
+                    // not written, so it will never be found
+                    pending.remove(id);
+                    LOG.error("ERROR", t);
+                }
+            }, MoreExecutors.directExecutor());
+        } catch (Exception e) {
+            LOG.error("ERROR", e);
+        }
+    }
+
+    private void poll() {
+        if (pending.isEmpty()) {
+            return;
+        }
+        try {
+            // one query for every marker still pending
+            StringBuilder q = new StringBuilder("id:(");
+            for (String id : pending.keySet()) {
+                if (q.length() > 4) {
+                    q.append(" OR ");
+                }
+                q.append('"').append(id).append('"');
+            }
+            q.append(')');
+
+            HttpGet request = new HttpGet(new URIBuilder(solrSearchUrl + "/select")
+                    .addParameter("q", q.toString())
+                    .addParameter("fl", "id")
+                    .addParameter("rows", Integer.toString(pending.size()))
+                    .addParameter("wt", "json")
+                    .build());
+
+            JSONArray docs;
+            try (CloseableHttpResponse response = httpclient.execute(request)) {
+                docs = new JSONObject(EntityUtils.toString(response.getEntity())).getJSONObject("response").getJSONArray("docs");
+            }
+
+            long now = System.nanoTime();
+            for (int i = 0; i < docs.length(); i++) {
+                Long written = pending.remove(docs.getJSONObject(i).getString("id"));
+                if (written != null) {
+                    recorder.recordValue(now - written);
+                    found += 1;
+                }
+            }
+
+            Iterator<Long> it = pending.values().iterator();
+            while (it.hasNext()) {
+                if (now - it.next() > TimeUnit.MILLISECONDS.toNanos(timeoutMs)) {
+                    it.remove();
+                    lost += 1;
+                }
+            }
+        } catch (Exception e) {
+            LOG.error("ERROR", e);
+        }
+    }
+
+    private void report() {
+        interval = recorder.getIntervalHistogram(interval);
+        total.add(interval);
+        System.out.format("Visibility,%d,%.0f,%.0f,%.0f,%d,%d\n", found,
+                toMillis(interval.getValueAtPercentile(50)), toMillis(interval.getValueAtPercentile(99)),
+                toMillis(interval.getMaxValue()), pending.size(), lost);
+    }
+
+    /**
+     * Stops writing markers and prints the percentiles for the whole run.
+     */
+    public void close() {
+        executor.shutdownNow();
+        try {
+            executor.awaitTermination(5, TimeUnit.SECONDS);
+            interval = recorder.getIntervalHistogram(interval);
+            total.add(interval);
+            System.out.format("Visibility ms | p50: %.0f | p90: %.0f | p99: %.0f | max: %.0f | found: %d | lost: %d\n",
+                    toMillis(total.getValueAtPercentile(50)), toMillis(total.getValueAtPercentile(90)),
+                    toMillis(total.getValueAtPercentile(99)), toMillis(total.getMaxValue()), found, lost);
+            httpclient.close();
+        } catch (Exception e) {
+            LOG.error("ERROR", e);
+        }
+    }
+
+    private static double toMillis(long nanos) {
+        return nanos / 1000000.0;
+    }
+
+    public static void main(String[] args) {
+
+        String username = "";   // default to empty string
+        String password = "";  // default to empty string
+        long intervalMs = 1000;
+
+        LOG.info("Entering application.");
+        int numargs = args.length;
+        if (numargs != 4 && numargs != 5 && numargs != 7) {
+            System.err.print("Usage: SolrVisibilityProbe [CassandraHost] [Keyspace] [TableName] [SolrSearchURL] (intervalMs) ((username) (password))  \n");
+            System.err.println("Example: java -cp target/pth.jar com.esri.rttest.mon.SolrVisibilityProbe localhost realtime planes http://localhost:8983/solr/realtime.planes 1000");
+        } else {
+            if (numargs >= 5) {
+                intervalMs = Long.parseLong(args[4]);
+            }
+            if (numargs == 7) {
+                username = args[5];
+                password = args[6];
+            }
+
+            try {
+                Cluster cluster = Cluster.builder().addContactPoint(args[0]).build();
+                SolrVisibilityProbe probe = new SolrVisibilityProbe(cluster.connect(), args[1], args[2], args[3], username, password, intervalMs);
+                Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                    probe.close();
+                    cluster.close();
+                }));
+                probe.start();
+            } catch (Exception e) {
+                LOG.error("ERROR", e);
+            }
+        }
+
+    }
+}
@@ -0,0 +1,339 @@
+/*
+ * (C) Copyright 2017 David Jennings
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     David Jennings
+ */
+/**
+ * Counts the rows of a Cassandra table one token range at a time.
+ * The ring is split into sub-ranges and each one is counted with its own async query,
+ * sent to a replica of the range so the coordinator does not have to fan out.
+ * At most maxConcurrent queries are outstanding.
+ * Can also estimate the rows from a sample of the sub-ranges, or read system.size_estimates.
+ *
+ * Creator: David Jennings
+ */
+package com.esri.rttest.mon;
+
+import com.datastax.driver.core.BoundStatement;
+import com.datastax.driver.core.Cluster;
+import com.datastax.driver.core.ColumnMetadata;
+import com.datastax.driver.core.Host;
+import com.datastax.driver.core.HostDistance;
+import com.datastax.driver.core.Metadata;
+import com.datastax.driver.core.PreparedStatement;
+import com.datastax.driver.core.ResultSet;
+import com.datastax.driver.core.Row;
+import com.datastax.driver.core.Session;
+import com.datastax.driver.core.Statement;
+import com.datastax.driver.core.TableMetadata;
+import com.datastax.driver.core.TokenRange;
+import com.datastax.driver.core.policies.ChainableLoadBalancingPolicy;
+import com.datastax.driver.core.policies.LoadBalancingPolicy;
+import com.google.common.collect.Iterators;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.MoreExecutors;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Collectors;
+
+class TokenRangeCounter {
+
+    // The ring is split into at least this many sub-ranges so the work spreads over all nodes
+    static final int MIN_SUB_RANGES = 256;
+
+    /**
+     * Count of one sub-range; carries the replica it should be sent to.
+     */
+    static class RangeCount extends BoundStatement {
+        final Host replica;
+
+        RangeCount(PreparedStatement statement, Host replica) {
+            super(statement);
+            this.replica = replica;
+        }
+    }
+
+    /**
+     * Sends RangeCount statements to their replica first; everything else goes to the child policy.
+     */
+    static class RangeRoutingPolicy implements ChainableLoadBalancingPolicy {
+
+        private final LoadBalancingPolicy childPolicy;
+
+        RangeRoutingPolicy(LoadBalancingPolicy childPolicy) {
+            this.childPolicy = childPolicy;
+        }
+
+        @Override
+        public LoadBalancingPolicy getChildPolicy() {
+            return childPolicy;
+        }
+
+        @Override
+        public void init(Cluster cluster, Collection<Host> hosts) {
+            childPolicy.init(cluster, hosts);
+        }
+
+        @Override
+        public HostDistance distance(Host host) {
+            return childPolicy.distance(host);
+        }
+
+        @Override
+        public Iterator<Host> newQueryPlan(String loggedKeyspace, Statement statement) {
+            Iterator<Host> plan = childPolicy.newQueryPlan(loggedKeyspace, statement);
+            if (statement instanceof RangeCount) {
+                Host replica = ((RangeCount) statement).replica;
+                if (replica != null && replica.isUp() && childPolicy.distance(replica) != HostDistance.IGNORED) {
+                    return Iterators.concat(Iterators.singletonIterator(replica), Iterators.filter(plan, h -> !replica.equals(h)));
+                }
+            }
+            return plan;
+        }
+
+        @Override
+        public void onAdd(Host host) {
+            childPolicy.onAdd(host);
+        }
+
+        @Override
+        public void onUp(Host host) {
+            childPolicy.onUp(host);
+        }
+
+        @Override
+        public void onDown(Host host) {
+            childPolicy.onDown(host);
+        }
+
+        @Override
+        public void onRemove(Host host) {
+            childPolicy.onRemove(host);
+        }
+
+        @Override
+        public void close() {
+            childPolicy.close();
+        }
+    }
+
+    private final Session session;
+    private final Metadata metadata;
+    private final String keyspace;
+    private final PreparedStatement statement;
+    private final int maxConcurrent;
+    private final List<TokenRange> ranges;
+    private final String tableName;
+    private PreparedStatement sizeEstimatesStatement;
+
+    TokenRangeCounter(Session session, String keyspace, String tableName, int maxConcurrent) {
+        this.session = session;
+        this.metadata = session.getCluster().getMetadata();
+        this.keyspace = keyspace;
+        this.tableName = tableName;
+        this.maxConcurrent = maxConcurrent;
+
+        TableMetadata table = metadata.getKeyspace(keyspace).getTable(tableName);
+        String token = "token(" + table.getPartitionKey().stream().map(ColumnMetadata::getName).collect(Collectors.joining(", ")) + ")";
+        this.statement = session.prepare("SELECT COUNT(*) as COUNT FROM " + keyspace + "." + tableName + " WHERE " + token + " > ? AND " + token + " <= ?");
+
+        Set<TokenRange> ring = metadata.getTokenRanges();
+        int splits = Math.max(1, (MIN_SUB_RANGES + ring.size() - 1) / ring.size());
+        List<TokenRange> subRanges = new ArrayList<>();
+        for (TokenRange range : ring) {
+            for (TokenRange unwrapped : range.unwrap()) {
+                subRanges.addAll(splits > 1 ? unwrapped.splitEvenly(splits) : Collections.singletonList(unwrapped));
+            }
+        }
+        this.ranges = Collections.unmodifiableList(subRanges);
+    }
+
+    /**
+     * @return Sub-ranges that together cover the ring
+     */
+    List<TokenRange> getRanges() {
+        return ranges;
+    }
+
+    /**
+     * @return Number of rows in the table
+     */
+    long count() throws Exception {
+        return count(ranges);
+    }
+
+    /**
+     * Counts the rows in the given sub-ranges concurrently.
+     *
+     * @return Number of rows in the sub-ranges
+     * @throws Exception the first failure if any sub-range could not be counted
+     */
+    long count(List<TokenRange> subRanges) throws Exception {
+        long total = 0;
+        for (long cnt : countEach(subRanges)) {
+            total += cnt;
+        }
+        return total;
+    }
+
+    /**
+     * Estimates the rows in the table from the counts of a sample of sub-ranges.
+     * <p>
+     * Uses the ratio estimator: rows per token in the sample times the width of the ring. The
+     * error is the half width of the 95% confidence interval, from the spread of the sampled
+     * sub-ranges around that ratio.
+     *
+     * @param sample Sub-ranges to count; a fixed sample keeps the estimate steady when nothing is written
+     * @return {estimate, error}
+     * @throws Exception the first failure if any sub-range could not be counted
+     */
+    double[] estimate(List<TokenRange> sample) throws Exception {
+        long[] counts = countEach(sample);
+
+        int n = sample.size();
+        double sampleRows = 0;
+        double sampleWidth = 0;
+        double[] widths = new double[n];
+        for (int i = 0; i < n; i++) {
+            widths[i] = width(sample.get(i));
+            sampleRows += counts[i];
+            sampleWidth += widths[i];
+        }
+        double ringWidth = 0;
+        for (TokenRange range : ranges) {
+            ringWidth += width(range);
+        }
+
+        double ratio = sampleRows / sampleWidth;
+        double estimate = ratio * ringWidth;
+
+        if (n < 2 || n >= ranges.size()) {
+            return new double[]{estimate, n >= ranges.size() ? 0 : Double.NaN};
+        }
+
+        // Variance of the ratio estimator, with the sub-ranges as the sampling units
+        int numRanges = ranges.size();
+        double ss = 0;
+        for (int i = 0; i < n; i++) {
+            double residual = counts[i] - ratio * widths[i];
+            ss += residual * residual;
+        }
+        double variance = (double) numRanges * numRanges * (1.0 - (double) n / numRanges) / n * ss / (n - 1);
+
+        return new double[]{estimate, 1.96 * Math.sqrt(variance)};
+    }
+
+    /**
+     * Adds up the partition estimates every node keeps for its primary ranges in system.size_estimates.
+     * <p>
+     * These are partitions, not rows, and Cassandra only refreshes them every few minutes,
+     * so there is no interval: the error is NaN.
+     *
+     * @return {estimate, NaN}
+     */
+    double[] sizeEstimates() throws Exception {
+        if (sizeEstimatesStatement == null) {
+            sizeEstimatesStatement = session.prepare("SELECT partitions_count FROM system.size_estimates WHERE keyspace_name = ? AND table_name = ?");
+        }
+
+        long total = 0;
+        for (Host host : metadata.getAllHosts()) {
+            RangeCount local = new RangeCount(sizeEstimatesStatement, host);
+            local.setString(0, keyspace);
+            local.setString(1, tableName);
+            for (Row row : session.execute(local)) {
+                total += row.getLong("partitions_count");
+            }
+        }
+        return new double[]{total, Double.NaN};
+    }
+
+    /**
+     * @return Number of tokens in the range; 1 when the partitioner's tokens are not numbers
+     */
+    static double width(TokenRange range) {
+        Object start = range.getStart().getValue();
+        Object end = range.getEnd().getValue();
+        if (start instanceof Long && end instanceof Long) {
+            // Murmur3; a range ending on the minimum token runs to the end of the ring
+            double s = (Long) start;
+            double e = (Long) end == Long.MIN_VALUE ? Long.MAX_VALUE : (Long) end;
+            return e > s ? e - s : e - s + Math.pow(2, 64);
+        }
+        if (start instanceof BigInteger && end instanceof BigInteger) {
+            // RandomPartitioner
+            double w = ((BigInteger) end).subtract((BigInteger) start).doubleValue();
+            return w > 0 ? w : w + Math.pow(2, 127);
+        }
+        return 1;
+    }
+
+    /**
+     * @return Number of rows in each of the sub-ranges
+     */
+    long[] countEach(List<TokenRange> subRanges) throws Exception {
+        Semaphore permits = new Semaphore(maxConcurrent);
+        long[] counts = new long[subRanges.size()];
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+
+        for (int i = 0; i < subRanges.size(); i++) {
+            TokenRange range = subRanges.get(i);
+            permits.acquire();
+            if (failure.get() != null) {
+                permits.release();
+                break;
+            }
+
+            Set<Host> replicas = metadata.getReplicas(keyspace, range);
+            RangeCount rangeCount = new RangeCount(statement, replicas.isEmpty() ? null : replicas.iterator().next());
+            rangeCount.setToken(0, range.getStart());
+            rangeCount.setToken(1, range.getEnd());
+
+            final int index = i;
+            Futures.addCallback(session.executeAsync(rangeCount), new FutureCallback<ResultSet>() {
+                @Override
+                public void onSuccess(ResultSet rs) {
+                    counts[index] = rs.one().getLong("COUNT");
+                    permits.release();
+                }
+
+                @Override
+                public void onFailure(Throwable t) {
+                    failure.compareAndSet(null, t);
+                    permits.release();
+                }
+            }, MoreExecutors.directExecutor());
+        }
+
+        // wait for the outstanding queries; the semaphore also publishes the counts
+        permits.acquire(maxConcurrent);
+
+        Throwable t = failure.get();
+        if (t != null) {
+            throw new Exception("Token range count failed", t);
+        }
+        return counts;
+    }
+}
@@ -22,6 +22,7 @@ import com.datastax.driver.core.Cluster;
 import com.datastax.driver.core.HostDistance;
 import com.datastax.driver.core.PoolingOptions;
 import com.datastax.driver.core.Session;
+import com.esri.rttest.mon.SolrVisibilityProbe;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
@@ -30,6 +31,11 @@ import java.util.Date;
 import java.util.List;
 import java.util.Random;
 import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
 
 /*
  * Sends planes dummy data to Cassandra at a specific rate.
@@ -39,21 +45,26 @@ public class Cassandra
 
     private static final Logger LOG = LogManager.getLogger(Cassandra.class);
 
+    // In batch mode rows are held at most this long before being handed to the loader
+    private static final long MAX_CHUNK_NANOS = 100_000_000L;
+
     private String cassandraHost;
     private String keyspace;
     private String tableName;
+    private int numOfThreads;
     private CassandraBulkLoader bulkLoader;
 
-    public Cassandra(String cassandraHosts, String keyspace, String tableName, int numOfThreads, boolean useSolr, boolean storeGeo) {
+    public Cassandra(String cassandraHosts, String keyspace, String tableName, int numOfThreads, boolean useSolr, boolean storeGeo, int maxInFlight, int batchSize) {
       this.cassandraHost = cassandraHosts;
       this.keyspace = keyspace;
       this.tableName = tableName;
+      this.numOfThreads = numOfThreads;
 
       // add the shutdown hook
       Runtime.getRuntime().addShutdownHook(new Thread(this::closeCassandraSession));
 
       // init - create the table
-      init(numOfThreads, useSolr, storeGeo);
+      init(numOfThreads, useSolr, storeGeo, maxInFlight, batchSize);
     }
 
     private Cluster cluster = null;
@@ -75,21 +86,23 @@ public class Cassandra
     }
 
     /**
-     * Closes the cassandra session
+     * Closes the cassandra session and the loader; sendPlanes can be called any number of times before this
      */
     public void closeCassandraSession()
     {
+      if (bulkLoader != null)
+        bulkLoader.close();
       if (cluster != null)
         cluster.close();
     }
 
-    private void init(int numOfThreads, boolean useSolr, boolean storeGeo)
+    private void init(int numOfThreads, boolean useSolr, boolean storeGeo, int maxInFlight, int batchSize)
     {
       final String insertCQL =
           "INSERT INTO " + keyspace + "." + tableName +
               " (id, ts, speed, dist, bearing, rtid, orig, dest, secstodep, lon, lat, geometry) " +
               " VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
-      bulkLoader = new CassandraBulkLoader(numOfThreads, insertCQL, cassandraHost);
+      bulkLoader = new CassandraBulkLoader(numOfThreads, insertCQL, cassandraHost, maxInFlight, batchSize);
 
       String actualTableName = keyspace + "." + tableName;
       Session session = createOrGetCassandraSession();
@@ -165,177 +178,174 @@ public class Cassandra
       }
     }
     /**
-     * 
-     * @param rate Rate in lines per second to send.
-     * @param numToSend Number of lines to send. If more than number of lines in file will resend from start.
+     * Generates and writes plane rows from numOfThreads threads.
+     * <p>
+     * Each thread builds its own rows (with its own random ids) and writes them at its share of the rate,
+     * so generation is no longer limited to one core.
+     *
+     * @param rate Rate in lines per second to send; split evenly across the threads.
+     * @param numToSend Number of lines to send; split evenly across the threads.
      * @param burstDelay Number of milliseconds to burst at; set to 0 to send one line at a time
      */
     public void sendPlanes(Integer rate, Integer numToSend, Integer burstDelay) {
+        sendPlanes(rate, numToSend, burstDelay, null);
+    }
+
+    /**
+     * Same as sendPlanes(rate, numToSend, burstDelay) but with rows from a PlaneSimulator when simSpec is set.
+     * <p>
+     * Each thread simulates its own range of plane ids so the ids are spread over numPlanes partitions
+     * and the positions move over the globe.
+     *
+     * @param simSpec sim:numPlanes[:seed]; null to send the sample planes with random ids
+     */
+    public void sendPlanes(Integer rate, Integer numToSend, Integer burstDelay, String simSpec) {
+        sendPlanes(RateProfile.constant(rate), numToSend, burstDelay, simSpec);
+    }
+
+    /**
+     * Sends at a rate that follows a profile (ramps, steps, sine, spikes).
+     * <p>
+     * Each thread paces its share of the profile. Sending stops after numToSend rows or when the
+     * profile ends, whichever comes first. The output lines have the target rate next to the achieved rate.
+     *
+     * @param profile Rate in lines per second over time; split evenly across the threads.
+     * @param numToSend Number of lines to send; split evenly across the threads.
+     * @param burstDelay Number of milliseconds to burst at; set to 0 to send one line at a time
+     * @param simSpec sim:numPlanes[:seed]; null to send the sample planes with random ids
+     */
+    public void sendPlanes(RateProfile profile, Integer numToSend, Integer burstDelay, String simSpec) {
+        int rate = (int) Math.ceil(profile.getMaxRate());
+
+        // Every thread needs a rate of at least one line per second
+        int threads = Math.max(1, Math.min(numOfThreads, rate));
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        RateReporter reporter = new RateReporter("cassandra", false);
+        // the target is always exported; a constant rate keeps the short output line
+        reporter.setTarget(profile::rateAt, !profile.isConstant());
+        // success,timeouts,overloads,retries,failures in rows; inFlight in writes
+        reporter.setColumns(bulkLoader::getStats);
+        reporter.setMetrics(bulkLoader::collect);
+        SolrVisibilityProbe probe = null;
         try {
+            // -Dpth.probe.solrUrl=http://host:8983/solr/keyspace.table measures how long rows take to become searchable
+            String probeUrl = System.getProperty("pth.probe.solrUrl");
+            if (probeUrl != null) {
+                probe = new SolrVisibilityProbe(createOrGetCassandraSession(), keyspace, tableName, probeUrl,
+                        System.getProperty("pth.probe.user", ""), System.getProperty("pth.probe.password", ""),
+                        Long.getLong("pth.probe.intervalMs", 1000));
+                probe.start();
+            }
 
+            List<Callable<Void>> generators = new ArrayList<>();
+            for (int i = 0; i < threads; i++) {
+                // Split the rate and count; any remainder goes to the first threads
+                final int threadRate = rate / threads + (i < rate % threads ? 1 : 0);
+                final RateProfile threadProfile = profile.scale((double) threadRate / rate);
+                final int threadNumToSend = numToSend / threads + (i < numToSend % threads ? 1 : 0);
+                final int firstPlane = i * planeData.size() / threads;
+                final PlaneSimulator simulator = simSpec == null ? null : PlaneSimulator.fromSpec(simSpec, i, threads, threadRate);
+
+                generators.add(() -> {
+                    send(threadProfile, threadNumToSend, burstDelay, firstPlane, simulator, reporter);
+                    return null;
+                });
+            }
 
-            // Get the System Time
-            Long st = System.currentTimeMillis();
+            for (Future<Void> f : executor.invokeAll(generators)) {
+                f.get();
+            }
 
-            Integer cnt = 0;
+            // wait for the outstanding writes so the final line has the final counts
+            bulkLoader.flush();
 
-            // Tweak used to adjust delays to try and get requested rate
-            Long tweak = 0L;
+        } catch (Exception error) {
+            LOG.error("ERROR", error);
+        } finally {
+            executor.shutdownNow();
+            reporter.close();
+            if (probe != null) {
+                probe.close();
+            }
+        }
+    }
 
+    /**
+     * Generates rows at the requested rate and hands them to the loader; run by each generator thread.
+     * Rows come from the simulator when there is one, otherwise from the sample planes.
+     */
+    private void send(RateProfile profile, int numToSend, int burstDelay, int firstPlane, PlaneSimulator simulator, RateReporter reporter) throws InterruptedException {
+        Pacer pacer = new Pacer(profile);
+        Random random = ThreadLocalRandom.current();
+
+        // In batch mode rows are collected so the loader can group them by partition and owner
+        List<Object[]> recordsToSend = new ArrayList<>();
+        int chunkRows = bulkLoader.getChunkRows();
+        long chunkStart = System.nanoTime();
+        int sampleDataCounter = firstPlane;
+
+        int cnt = 0;
+        while (cnt < numToSend && !pacer.isDone()) {
             /*
                 For rates < 100/s burst is better
                 For rates > 100/s continous is better
             */
+            int numPerBurst = 1;
+            if (burstDelay > 0) {
+                // *********** SEND in bursts every burstDelay ms; the burst follows the current rate  *********
+                numPerBurst = Math.max(1, (int) Math.round(pacer.getRate() * burstDelay / 1000.0));
+            }
 
-            List<Object[]> recordsToSend = new ArrayList<>();
-              int sampleDataCounter = 0;
-
-            // *********** SEND Constant Rate using nanosecond delay *********
-            if (burstDelay == 0) {
-                // Delay between each send in nano seconds            
-                Double ns_delay = 1000000000.0 / (double) rate;
-                
-                // By adding some to the delay you can fine tune to achieve the desired output
-                ns_delay = ns_delay - (tweak * 100);
-                
-                long ns = ns_delay.longValue();
-                if (ns < 0) ns = 0;  // can't be less than 0 
-
-                while (cnt < numToSend) {
-                    
-                   if (cnt % rate == 0 && cnt > 0) {
-
-                        // flush here
-                        bulkLoader.ingest(recordsToSend.listIterator());
-                        recordsToSend.clear();
-
-                        // Calculate rate and adjust as needed
-                        Double curRate = (double) cnt / (System.currentTimeMillis() - st) * 1000;
-                        System.out.println(cnt + "," + String.format("%.0f", curRate));
-                    }
-
-                    if (cnt % 1000 == 0 && cnt > 0) {
-                        // Calculate rate and adjust as needed
-                        Double curRate = (double) cnt / (System.currentTimeMillis() - st) * 1000;
-
-                        // rate difference as percentage 
-                        Double rateDiff = (rate - curRate) / rate;
-
-                        // Add or subracts up to 100ns 
-                        tweak = (long) (rateDiff * rate);
-
-                        // By adding some to the delay you can fine tune to achieve the desired output
-                        ns = ns - tweak;
-                        if (ns < 0) {
-                            ns = 0;  // can't be less than 0 
-                        }
-
-                    }                             
-                    
-                    cnt += 1;
-
-                    // create the plane record to send
-                    Plane plane = planeData.get(sampleDataCounter);
-                    sampleDataCounter++;
-                    if (sampleDataCounter >= planeData.size()) {
-                      sampleDataCounter = 0;
-                    }
-
-                    String id = getUUID();
-                    long ts = System.currentTimeMillis();
-                    Object[] record = new Object[]{id, new Date(ts), plane.getSpeed(), plane.getDist(), plane.getBearing(), plane.getRtid(), plane.getOrig(), plane.getDest(), plane.getSecsToDep(), plane.getLongitude(), plane.getLatitude(), plane.getGeometry()};
-                    recordsToSend.add(record);
-
-                    final long stime = System.nanoTime();
-                    long etime;
-                    do {
-                        // This approach uses a lot of CPU                    
-                        etime = System.nanoTime();
-                        // Adding the following sleep for a few microsecond reduces the load
-                        // However, it also effects the through put
-                        //Thread.sleep(0,100);  
-                    } while (stime + ns >= etime);                
+            int n = Math.min(numPerBurst, numToSend - cnt);
+            pacer.acquire(n);
 
+            for (int i = 0; i < n; i++) {
+                if (simulator != null) {
+                    recordsToSend.add(simulator.nextRecord());
+                    continue;
                 }
-            } else {
-                // *********** SEND in bursts every msDelay ms  *********
-
-                Integer msDelay = burstDelay;
-                Integer numPerBurst = Math.round(rate / 1000 * msDelay); 
-
-                if (numPerBurst < 1) numPerBurst = 1;
-                
-                Integer delay = burstDelay;
-
-                while (cnt < numToSend) {
-                    
-                   // Adjust delay every burst
-                    Double curRate = (double) cnt / (System.currentTimeMillis() - st) * 1000;
-                    Double rateDiff = (rate - curRate) / rate;
-                    tweak = (long) (rateDiff * rate);
-                    delay = delay - Math.round(tweak / 1000.0f);
-                    if (delay < 0) {
-                        delay = 0;  // delay cannot be negative
-                    } else {
-                        Thread.sleep(delay);
-                    }
-                                        
-
-                    Integer i = 0;
-                    while (i < numPerBurst) {
-                        if (cnt % rate == 0 && cnt > 0) {
-
-                            // flush here
-                            bulkLoader.ingest(recordsToSend.listIterator());
-                            recordsToSend.clear();
-
-                            curRate = (double) cnt / (System.currentTimeMillis() - st) * 1000;
-                            System.out.println(cnt + "," + String.format("%.0f", curRate));
-                        }                        
-                        
-                        cnt += 1;
-                        
-                        i += 1;
-
-                        // create the plane record to send
-                        Plane plane = planeData.get(sampleDataCounter);
-                        sampleDataCounter++;
-                        if (sampleDataCounter >= planeData.size()) {
-                          sampleDataCounter = 0;
-                        }
-
-                        String id = getUUID();
-                        long ts = System.currentTimeMillis();
-                        Object[] record = new Object[]{id, ts, plane.getSpeed(), plane.getDist(), plane.getBearing(), plane.getRtid(), plane.getOrig(), plane.getDest(), plane.getSecsToDep(), plane.getLongitude(), plane.getLatitude(), plane.getGeometry()};
-                        recordsToSend.add(record);
-
-                        // Break out as soon as numToSend is reached
-                        if (cnt >= numToSend) {
-                            break;
-                        }                           
-                        
-                    }
 
+                // create the plane record to send
+                Plane plane = planeData.get(sampleDataCounter);
+                String geometry = planeGeometry.get(sampleDataCounter);
+                sampleDataCounter++;
+                if (sampleDataCounter >= planeData.size()) {
+                  sampleDataCounter = 0;
                 }
+
+                String id = new UUID(random.nextLong(), random.nextLong()).toString();
+                long ts = System.currentTimeMillis();
+                Object[] record = new Object[]{id, new Date(ts), plane.getSpeed(), plane.getDist(), plane.getBearing(), plane.getRtid(), plane.getOrig(), plane.getDest(), plane.getSecsToDep(), plane.getLongitude(), plane.getLatitude(), geometry};
+                recordsToSend.add(record);
             }
 
-            // flush here
-            if (!recordsToSend.isEmpty())
-              bulkLoader.ingest(recordsToSend.listIterator());
-            bulkLoader.close();
+            if (recordsToSend.size() >= chunkRows || System.nanoTime() - chunkStart >= MAX_CHUNK_NANOS) {
+                ingest(recordsToSend, reporter);
+                chunkStart = System.nanoTime();
+            }
 
-            Double sendRate = (double) cnt / (System.currentTimeMillis() - st) * 1000;
-            System.out.println(cnt + "," + String.format("%.0f", sendRate));
-                             
-        } catch (Exception error) {
-            // Could fail on very large files that would fill heap space
-            LOG.error("ERROR", error);
+            cnt += n;
+        }
+
+        if (!recordsToSend.isEmpty()) {
+            ingest(recordsToSend, reporter);
         }
     }
+
+    /**
+     * Hands the rows to the loader and counts them as sent; ingest returns once every row has been
+     * submitted, so rows still waiting in a chunk are not counted yet.
+     */
+    private void ingest(List<Object[]> recordsToSend, RateReporter reporter) throws InterruptedException {
+        bulkLoader.ingest(recordsToSend.listIterator());
+        reporter.add(recordsToSend.size());
+        recordsToSend.clear();
+    }
     
     public static void main(String args[]) throws Exception {
-        if (args.length != 8 && args.length != 9) {
-            System.err.print("Usage: Cassandra <host-names> <keyspace> <tablename> <numOfThreads> <useSolr> <storeGeo> <rate> <numrecords> (<burst-delay-ms>)\n");
+        if (args.length < 8 || args.length > 12) {
+            System.err.print("Usage: Cassandra <host-names> <keyspace> <tablename> <numOfThreads> <useSolr> <storeGeo> <rate-or-profile.json> <numrecords> (<burst-delay-ms>) (<max-in-flight>) (<batch-size>) (<sim:numPlanes[:seed]>)\n");
         } else {
             String hostNames = args[0];
             String keyspace = args[1];
@@ -343,24 +353,39 @@ public class Cassandra
             int numOfThreads = Integer.parseInt(args[3]);
             boolean useSolr = Boolean.parseBoolean(args[4]);
             boolean storeGeo = Boolean.parseBoolean(args[5]);
-            int rate = Integer.parseInt(args[6]);
+            RateProfile rate = RateProfile.parse(args[6]);
             int numOfRecords = Integer.parseInt(args[7]);
             int burstDelay = 0;
+            int maxInFlight = 1024;
+            int batchSize = 1;
+            String simSpec = null;
 
-            Cassandra cassandra = new Cassandra(hostNames, keyspace, tableName, numOfThreads, useSolr, storeGeo);
-            if (args.length == 9)
+            if (args.length >= 9)
             {
               burstDelay = Integer.parseInt(args[8]);
             }
-            cassandra.sendPlanes(rate, numOfRecords, burstDelay);
+            if (args.length >= 10)
+            {
+              maxInFlight = Integer.parseInt(args[9]);
+            }
+            if (args.length >= 11)
+            {
+              batchSize = Integer.parseInt(args[10]);
+            }
+            if (args.length == 12)
+            {
+              simSpec = args[11];
+            }
+            Cassandra cassandra = new Cassandra(hostNames, keyspace, tableName, numOfThreads, useSolr, storeGeo, maxInFlight, batchSize);
+            cassandra.sendPlanes(rate, numOfRecords, burstDelay, simSpec);
             cassandra.closeCassandraSession();
         }
     }
 
     /**
-     * Plane Sample Data
+     * Plane Sample Data; also used by PlaneSimulator for routes and airport names
      */
-    private static List<Plane> planeData = new ArrayList<>();
+    static final List<Plane> planeData = new ArrayList<>();
     static {
       planeData.add(new Plane(0,1506957079575L,240.25,5024.32,-70.72,1,"Mielec Airport","Frank Pais International Airport",-1,-31.88592,49.21297));
       planeData.add(new Plane(1,1506957079575L,292.55,1126.25,-128.79,2,"Covilhã Airport","Tangará da Serra Airport",-1,-51.19537,-6.60298));
@@ -465,10 +490,13 @@ public class Cassandra
       planeData.add(new Plane(100,1506957079575L,157.7,7760.79,-105.75,101,"Hunt Field","Longana Airport",-1,-138.18734,31.70385));
     }
 
-    private static Random random  = new Random();
-
-    private static String getUUID() {
-      UUID uuid = new UUID(random.nextLong(), random.nextLong());
-      return uuid.toString();
+    /**
+     * Geometry text of each sample plane, built once instead of for every row
+     */
+    private static List<String> planeGeometry = new ArrayList<>();
+    static {
+      for (Plane plane : planeData) {
+        planeGeometry.add(plane.getGeometry());
+      }
     }
 }
@@ -1,64 +1,298 @@
 package com.esri.rttest.send;
 
+import com.datastax.driver.core.BatchStatement;
 import com.datastax.driver.core.BoundStatement;
 import com.datastax.driver.core.Cluster;
+import com.datastax.driver.core.CodecRegistry;
+import com.datastax.driver.core.Host;
 import com.datastax.driver.core.PreparedStatement;
+import com.datastax.driver.core.ProtocolVersion;
 import com.datastax.driver.core.ResultSet;
 import com.datastax.driver.core.ResultSetFuture;
 import com.datastax.driver.core.Session;
+import com.datastax.driver.core.Statement;
+import com.datastax.driver.core.exceptions.BusyConnectionException;
+import com.datastax.driver.core.exceptions.BusyPoolException;
+import com.datastax.driver.core.exceptions.NoHostAvailableException;
+import com.datastax.driver.core.exceptions.OperationTimedOutException;
+import com.datastax.driver.core.exceptions.OverloadedException;
+import com.datastax.driver.core.exceptions.WriteTimeoutException;
+import com.esri.rttest.Metrics;
 import com.google.common.util.concurrent.FutureCallback;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.MoreExecutors;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
 
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
 
 public class CassandraBulkLoader {
 
+  private static final Logger LOG = LogManager.getLogger(CassandraBulkLoader.class);
+
+  // Timed out or overloaded writes are tried again this many times, backing off from RETRY_DELAY_MS
+  static final int MAX_RETRIES = 3;
+  static final long RETRY_DELAY_MS = 10;
+
+  // Batches are cut below Cassandra's default batch_size_fail_threshold_in_kb (50)
+  static final int MAX_BATCH_BYTES = 48 * 1024;
+
+  // In batch mode callers should hand ingest this many batches worth of rows at a time
+  static final int CHUNK_BATCHES = 16;
+
   private final Cluster cluster;
   private final Session session;
   private final PreparedStatement statement;
   private final ExecutorService executor;
+  private final ScheduledExecutorService retryExecutor;
+
+  // Rows per UNLOGGED batch; 1 sends each row as its own statement
+  private final int batchSize;
+  private final ProtocolVersion protocolVersion;
+  private final CodecRegistry codecRegistry;
+
+  // One permit per outstanding write; ingest blocks when all are taken
+  private final int maxInFlight;
+  private final Semaphore inFlight;
+
+  // All results are counted in rows; a failed batch counts every row in it
+  private final LongAdder successes = new LongAdder();
+  private final LongAdder timeouts = new LongAdder();
+  private final LongAdder overloads = new LongAdder();
+  private final LongAdder retries = new LongAdder();
+  private final LongAdder failures = new LongAdder();
 
-  public CassandraBulkLoader(int threads, String insertCQL, String contactHosts){
+  public CassandraBulkLoader(int threads, String insertCQL, String contactHosts, int maxInFlight){
+    this(threads, insertCQL, contactHosts, maxInFlight, 1);
+  }
+
+  /**
+   * @param batchSize Rows per UNLOGGED batch; 1 (or less) writes each row as a single statement
+   */
+  public CassandraBulkLoader(int threads, String insertCQL, String contactHosts, int maxInFlight, int batchSize){
     this.cluster = Cluster.builder().addContactPoints(contactHosts).build();
     this.session = cluster.newSession();
     this.statement = session.prepare(insertCQL);
 
+    this.batchSize = Math.max(1, batchSize);
+    this.protocolVersion = cluster.getConfiguration().getProtocolOptions().getProtocolVersion();
+    this.codecRegistry = cluster.getConfiguration().getCodecRegistry();
+
     this.executor = MoreExecutors.getExitingExecutorService((ThreadPoolExecutor) Executors.newFixedThreadPool(threads));
+    this.retryExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+      Thread t = new Thread(r, "bulk-loader-retry");
+      t.setDaemon(true);
+      return t;
+    });
+
+    this.maxInFlight = maxInFlight;
+    this.inFlight = new Semaphore(maxInFlight);
   }
 
   //callback class
-  public static class IngestCallback implements FutureCallback<ResultSet>
+  private class IngestCallback implements FutureCallback<ResultSet>
   {
+    private final Statement boundStatement;
+    private final int rows;
+    private final int attempt;
+
+    IngestCallback(Statement boundStatement, int rows, int attempt) {
+      this.boundStatement = boundStatement;
+      this.rows = rows;
+      this.attempt = attempt;
+    }
 
     @Override
     public void onSuccess(ResultSet result) {
+      successes.add(rows);
+      inFlight.release();
     }
 
     @Override
     public void onFailure(Throwable t) {
-      throw new RuntimeException(t);
+      boolean retryable = false;
+      if (t instanceof WriteTimeoutException || t instanceof OperationTimedOutException) {
+        timeouts.add(rows);
+        retryable = true;
+      } else if (t instanceof OverloadedException || t instanceof BusyPoolException
+          || t instanceof BusyConnectionException || t instanceof NoHostAvailableException) {
+        overloads.add(rows);
+        retryable = true;
+      }
+
+      if (retryable && attempt < MAX_RETRIES) {
+        // keep the permit; the write is still in flight
+        retries.add(rows);
+        retryExecutor.schedule(() -> execute(boundStatement, rows, attempt + 1), RETRY_DELAY_MS << attempt, TimeUnit.MILLISECONDS);
+      } else {
+        failures.add(rows);
+        inFlight.release();
+        LOG.debug("Write failed", t);
+      }
     }
   }
 
   public void ingest(Iterator<Object[]> boundItemsIterator) throws InterruptedException
   {
-    // fixed thread pool that closes on app exit
+    if (batchSize > 1)
+    {
+      ingestBatches(boundItemsIterator);
+      return;
+    }
+
+    while (boundItemsIterator.hasNext())
+    {
+      BoundStatement boundStatement = statement.bind(boundItemsIterator.next());
+
+      // wait for a free slot; this throttles the caller when the cluster falls behind
+      inFlight.acquire();
+      execute(boundStatement, 1, 0);
+    }
+  }
+
+  /**
+   * Groups the rows by the replica that owns them and by partition key (the id column), then writes
+   * each group as UNLOGGED batches of at most batchSize rows and MAX_BATCH_BYTES.
+   * Rows of one partition end up next to each other so most batches touch few partitions on one node.
+   */
+  private void ingestBatches(Iterator<Object[]> boundItemsIterator) throws InterruptedException
+  {
+    // keyspace of the table being written (the insert is fully qualified)
+    String keyspace = statement.getVariables().getKeyspace(0);
+
+    Map<Host, Map<ByteBuffer, List<BoundStatement>>> byOwner = new HashMap<>();
     while (boundItemsIterator.hasNext())
     {
       BoundStatement boundStatement = statement.bind(boundItemsIterator.next());
-      ResultSetFuture future = session.executeAsync(boundStatement);
-      Futures.addCallback(future, new IngestCallback(), executor);
+      ByteBuffer partitionKey = boundStatement.getRoutingKey(protocolVersion, codecRegistry);
+
+      // first replica for the token; null when the token map is not known yet
+      Set<Host> replicas = cluster.getMetadata().getReplicas(keyspace, partitionKey);
+      Host owner = replicas.isEmpty() ? null : replicas.iterator().next();
+
+      byOwner.computeIfAbsent(owner, h -> new LinkedHashMap<>())
+          .computeIfAbsent(partitionKey, k -> new ArrayList<>())
+          .add(boundStatement);
     }
+
+    for (Map<ByteBuffer, List<BoundStatement>> partitions : byOwner.values())
+    {
+      BatchStatement batch = new BatchStatement(BatchStatement.Type.UNLOGGED);
+      int batchBytes = 0;
+      for (List<BoundStatement> rows : partitions.values())
+      {
+        for (BoundStatement row : rows)
+        {
+          int rowBytes = row.requestSizeInBytes(protocolVersion, codecRegistry);
+          if (batch.size() > 0 && (batch.size() >= batchSize || batchBytes + rowBytes > MAX_BATCH_BYTES))
+          {
+            inFlight.acquire();
+            execute(batch, batch.size(), 0);
+            batch = new BatchStatement(BatchStatement.Type.UNLOGGED);
+            batchBytes = 0;
+          }
+          batch.add(row);
+          batchBytes += rowBytes;
+        }
+      }
+      if (batch.size() > 0)
+      {
+        inFlight.acquire();
+        execute(batch, batch.size(), 0);
+      }
+    }
+  }
+
+  private void execute(Statement boundStatement, int rows, int attempt)
+  {
+    ResultSetFuture future = session.executeAsync(boundStatement);
+    Futures.addCallback(future, new IngestCallback(boundStatement, rows, attempt), executor);
+  }
+
+  /**
+   * @return Number of rows callers should collect before calling ingest; 1 when batching is off
+   */
+  public int getChunkRows() {
+    return batchSize > 1 ? batchSize * CHUNK_BATCHES : 1;
+  }
+
+  /**
+   * Waits until all writes handed to ingest have completed.
+   */
+  public void flush() throws InterruptedException
+  {
+    inFlight.acquire(maxInFlight);
+    inFlight.release(maxInFlight);
+  }
+
+  public long getSuccesses() {
+    return successes.sum();
+  }
+
+  public long getTimeouts() {
+    return timeouts.sum();
+  }
+
+  public long getOverloads() {
+    return overloads.sum();
+  }
+
+  public long getRetries() {
+    return retries.sum();
+  }
+
+  public long getFailures() {
+    return failures.sum();
+  }
+
+  /**
+   * @return Writes (single statements or batches) sent and not yet acknowledged
+   */
+  public int getInFlight() {
+    return maxInFlight - inFlight.availablePermits();
+  }
+
+  /**
+   * @return success,timeouts,overloads,retries,failures in rows, then inFlight in writes
+   */
+  public String getStats() {
+    return getSuccesses() + "," + getTimeouts() + "," + getOverloads() + "," + getRetries() + "," + getFailures() + "," + getInFlight();
+  }
+
+  /**
+   * Writes the write outcomes and in flight writes for a metrics scrape.
+   */
+  public void collect(StringBuilder out) {
+    Metrics.header(out, "pth_cassandra_rows_total", "counter", "Rows by write result; retries are counted separately from their outcome");
+    Metrics.sample(out, "pth_cassandra_rows_total", getSuccesses(), "result", "success");
+    Metrics.sample(out, "pth_cassandra_rows_total", getTimeouts(), "result", "timeout");
+    Metrics.sample(out, "pth_cassandra_rows_total", getOverloads(), "result", "overload");
+    Metrics.sample(out, "pth_cassandra_rows_total", getRetries(), "result", "retry");
+    Metrics.sample(out, "pth_cassandra_rows_total", getFailures(), "result", "failure");
+    Metrics.header(out, "pth_cassandra_in_flight", "gauge", "Writes (statements or batches) sent and not yet acknowledged");
+    Metrics.sample(out, "pth_cassandra_in_flight", getInFlight());
   }
 
   public void close()
   {
     try
     {
+      flush();
+      retryExecutor.shutdownNow();
       session.close();
       cluster.close();
     } catch (Exception error) {
@@ -18,14 +18,18 @@
  */
 package com.esri.rttest.send;
 
-import java.io.BufferedReader;
-import java.io.FileReader;
+import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Iterator;
+import java.util.List;
 import java.util.Properties;
-import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
+import org.apache.kafka.clients.producer.Callback;
 import org.apache.kafka.clients.producer.KafkaProducer;
 import org.apache.kafka.clients.producer.Producer;
 import org.apache.kafka.clients.producer.ProducerRecord;
@@ -34,7 +38,7 @@ import org.apache.logging.log4j.Logger;
 
 /*
  * Sends lines of a text file to a Kafka Topic 
- * Lines are sent at a specified rate.
+ * Lines are sent at a specified rate; optionally from several threads sharing one producer.
  * 
  * @author david
  */
@@ -43,7 +47,7 @@ public class Kafka
 
   private static final Logger LOG = LogManager.getLogger(Kafka.class);
 
-  private Producer<String, String> producer;
+  private Producer<byte[], byte[]> producer;
   private String                   topic;
 
   public Kafka(String brokers, String topic)
@@ -59,8 +63,8 @@ public class Kafka
     props.put("linger.ms", 1);
     props.put("buffer.memory", 8192000);
     props.put("request.timeout.ms", "11000");
-    props.put("key.serializer", "org.apache.kafka.common.serialization.StringSerializer");
-    props.put("value.serializer", "org.apache.kafka.common.serialization.StringSerializer");
+    props.put("key.serializer", "org.apache.kafka.common.serialization.ByteArraySerializer");
+    props.put("value.serializer", "org.apache.kafka.common.serialization.ByteArraySerializer");
             /* Addin Simple Partioner didn't help */
     //props.put("partitioner.class", SimplePartitioner.class.getCanonicalName());
 
@@ -77,182 +81,155 @@ public class Kafka
    */
   public void sendFile(String filename, Integer rate, Integer numToSend, Integer burstDelay)
   {
-    try
-    {
-      FileReader fr = new FileReader(filename);
-      BufferedReader br = new BufferedReader(fr);
-
-      // Read the file into an array
-      ArrayList<String> lines = new ArrayList<>();
-
-      String line;
-      while ((line = br.readLine()) != null)
-      {
-        lines.add(line);
-      }
+    sendFile(filename, rate, numToSend, burstDelay, 1);
+  }
 
-      br.close();
-      fr.close();
+  /**
+   * Sends the file from several threads sharing one producer.
+   * <p>
+   * Each thread sends the lines from its own slice of the file at its share of the rate. The counts of all
+   * threads are combined into one output line per second.
+   * <p>
+   * With a sim: filename each thread simulates its own range of plane ids instead (see PlaneSimulator).
+   *
+   * @param filename   File with lines of data to be sent, or sim:numPlanes[:seed] to send simulated planes.
+   * @param rate       Rate in lines per second to send; split evenly across the threads.
+   * @param numToSend  Number of lines to send; split evenly across the threads.
+   * @param burstDelay Number of milliseconds to burst at; set to 0 to send one line at a time
+   * @param numThreads Number of sending threads.
+   */
+  public void sendFile(String filename, Integer rate, Integer numToSend, Integer burstDelay, Integer numThreads)
+  {
+    sendFile(filename, RateProfile.constant(rate), numToSend, burstDelay, numThreads);
+  }
 
-      Iterator<String> linesIt = lines.iterator();
+  /**
+   * Sends the file at a rate that follows a profile (ramps, steps, sine, spikes).
+   * <p>
+   * Each thread paces its share of the profile. Sending stops after numToSend lines or when the
+   * profile ends, whichever comes first. The output lines have the target rate next to the achieved rate.
+   *
+   * @param filename   File with lines of data to be sent, or sim:numPlanes[:seed] to send simulated planes.
+   * @param profile    Rate in lines per second over time; split evenly across the threads.
+   * @param numToSend  Number of lines to send; split evenly across the threads.
+   * @param burstDelay Number of milliseconds to burst at; set to 0 to send one line at a time
+   * @param numThreads Number of sending threads.
+   */
+  public void sendFile(String filename, RateProfile profile, Integer numToSend, Integer burstDelay, Integer numThreads)
+  {
+    int rate = (int) Math.ceil(profile.getMaxRate());
 
-      // Get the System Time
-      Long st = System.currentTimeMillis();
+    // Every thread needs a rate of at least one line per second
+    if (numThreads > rate)
+    {
+      numThreads = rate;
+    }
+    if (numThreads < 1)
+    {
+      numThreads = 1;
+    }
 
-      Integer cnt = 0;
+    ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+    RateReporter reporter = new RateReporter("kafka", true);
+    // the target is always exported; a constant rate keeps the short output line
+    reporter.setTarget(profile::rateAt, !profile.isConstant());
 
-      // Tweak used to adjust delays to try and get requested rate
-      Long tweak = 0L;
-            
-            /*
-                For rates < 100/s burst is better
-                For rates > 100/s continous is better            
-            */
+    try
+    {
+      final boolean simulate = PlaneSimulator.isSpec(filename);
+      long fileSize = simulate ? 0 : new File(filename).length();
+      final int threads = numThreads;
 
-      // *********** SEND Constant Rate using nanosecond delay *********
-      if (burstDelay == 0)
+      List<Callable<Void>> senders = new ArrayList<>();
+      for (int i = 0; i < numThreads; i++)
       {
-        // Delay between each send in nano seconds
-        Double ns_delay = 1000000000.0 / (double) rate;
-
-        // By adding some to the delay you can fine tune to achieve the desired output
-        ns_delay = ns_delay - (tweak * 100);
-
-        long ns = ns_delay.longValue();
-        if (ns < 0)
-          ns = 0;  // can't be less than 0
-
-        while (cnt < numToSend)
-        {
-
-          if (cnt % rate == 0 && cnt > 0)
+        // Split the file, rate and count; any remainder goes to the first threads
+        final int part = i;
+        final long start = fileSize * i / numThreads;
+        final long end = fileSize * (i + 1) / numThreads;
+        final int threadRate = rate / numThreads + (i < rate % numThreads ? 1 : 0);
+        final RateProfile threadProfile = profile.scale((double) threadRate / rate);
+        final int threadNumToSend = numToSend / numThreads + (i < numToSend % numThreads ? 1 : 0);
+
+        senders.add(() -> {
+          try (LineSource lines = simulate
+              ? PlaneSimulator.fromSpec(filename, part, threads, threadRate)
+              : new MappedLineSource(filename, start, end))
           {
-            // Calculate rate and adjust as needed
-            Double curRate = (double) cnt / (System.currentTimeMillis() - st) * 1000;
-
-            System.out.println(cnt + "," + String.format("%.0f", curRate));
-          }
-
-          if (cnt % 1000 == 0 && cnt > 0)
-          {
-            // Calculate rate and adjust as needed
-            Double curRate = (double) cnt / (System.currentTimeMillis() - st) * 1000;
-
-            // rate difference as percentage
-            Double rateDiff = (rate - curRate) / rate;
-
-            // Add or subracts up to 100ns
-            tweak = (long) (rateDiff * rate);
-
-            // By adding some to the delay you can fine tune to achieve the desired output
-            ns = ns - tweak;
-            if (ns < 0)
-            {
-              ns = 0;  // can't be less than 0
-            }
-
+            send(lines, threadProfile, threadNumToSend, burstDelay, reporter);
           }
+          return null;
+        });
+      }
 
-          cnt += 1;
-
-          if (!linesIt.hasNext())
-            linesIt = lines.iterator();  // Reset Iterator
-
-          line = linesIt.next() + "\n";
+      for (Future<Void> f : executor.invokeAll(senders))
+      {
+        f.get();
+      }
 
-          final long stime = System.nanoTime();
+      // This command was needed when running multiple instances of Kafka; otherwise, lines were lost
+      producer.flush();
 
-          UUID uuid = UUID.randomUUID();
-          producer.send(new ProducerRecord<>(this.topic, uuid.toString(), line));
+    }
+    catch (InterruptedException | ExecutionException e)
+    {
+      LOG.error("ERROR", e);
+    }
+    finally
+    {
+      executor.shutdownNow();
+      reporter.close();
+    }
+  }
 
-          long etime;
-          do
-          {
-            // This approach uses a lot of CPU
-            etime = System.nanoTime();
-            // Adding the following sleep for a few microsecond reduces the load
-            // However, it also effects the through put
-            //Thread.sleep(0,100);
-          }
-          while (stime + ns >= etime);
+  /**
+   * Sends lines from one source at the requested rate; run by each sending thread.
+   */
+  private void send(LineSource lines, RateProfile profile, int numToSend, int burstDelay, RateReporter reporter) throws IOException, InterruptedException
+  {
+    Pacer pacer = new Pacer(profile);
+    RecordFramer framer = new RecordFramer();
 
-        }
-      }
-      else
+    int cnt = 0;
+    while (cnt < numToSend && !pacer.isDone())
+    {
+      /*
+          For rates < 100/s burst is better
+          For rates > 100/s continous is better
+      */
+      int numPerBurst = 1;
+      if (burstDelay > 0)
       {
-        // *********** SEND in bursts every msDelay ms  *********
-
-        Integer msDelay = burstDelay;
-        Integer numPerBurst = Math.round(rate / 1000 * msDelay);
-
-        if (numPerBurst < 1)
-          numPerBurst = 1;
+        // *********** SEND in bursts every burstDelay ms; the burst follows the current rate  *********
+        numPerBurst = Math.max(1, (int) Math.round(pacer.getRate() * burstDelay / 1000.0));
+      }
 
-        Integer delay = burstDelay;
+      int n = Math.min(numPerBurst, numToSend - cnt);
+      final long scheduled = pacer.acquire(n);
 
-        while (cnt < numToSend)
+      // One callback serves the whole burst; latency is measured from the scheduled send time, not from when send was called
+      Callback callback = (metadata, exception) -> {
+        if (exception == null)
         {
-
-          // Adjust delay every burst
-          Double curRate = (double) cnt / (System.currentTimeMillis() - st) * 1000;
-          Double rateDiff = (rate - curRate) / rate;
-          tweak = (long) (rateDiff * rate);
-          delay = delay - Math.round(tweak / 1000.0f);
-          if (delay < 0)
-          {
-            delay = 0;  // delay cannot be negative
-          }
-          else
-          {
-            Thread.sleep(delay);
-          }
-
-          Integer i = 0;
-          while (i < numPerBurst)
-          {
-            if (cnt % rate == 0 && cnt > 0)
-            {
-              curRate = (double) cnt / (System.currentTimeMillis() - st) * 1000;
-              System.out.println(cnt + "," + String.format("%.0f", curRate));
-            }
-
-            cnt += 1;
-
-            i += 1;
-            if (!linesIt.hasNext())
-              linesIt = lines.iterator();  // Reset Iterator
-
-            line = linesIt.next() + "\n";
-
-            UUID uuid = UUID.randomUUID();
-            producer.send(new ProducerRecord<>(this.topic, uuid.toString(), line));
-
-            // Break out as soon as numToSend is reached
-            if (cnt >= numToSend)
-            {
-              break;
-            }
-
-          }
-
+          reporter.recordLatency(System.nanoTime() - scheduled);
         }
+        else
+        {
+          reporter.error();
+        }
+      };
 
-      }
-
-      // This command was needed when running multiple instances of Kafka; otherwise, lines were lost
-      producer.flush();
-
-      Double sendRate = (double) cnt / (System.currentTimeMillis() - st) * 1000;
-
-      System.out.println(cnt + "," + String.format("%.0f", sendRate));
+      // Record timestamp is the wall clock time the burst was scheduled; KafkaToDSE stores it as sendts
+      final long sendTs = System.currentTimeMillis() - (System.nanoTime() - scheduled) / 1000000;
 
-    }
-    catch (IOException | InterruptedException e)
-    {
-      // Could fail on very large files that would fill heap space
-
-      LOG.error("ERROR", e);
+      for (int i = 0; i < n; i++)
+      {
+        // Key and value arrays are reused; the producer copies them before send returns
+        producer.send(new ProducerRecord<>(this.topic, null, sendTs, framer.key(), framer.frame(lines.next())), callback);
+        reporter.increment();
+      }
 
+      cnt += n;
     }
   }
 
@@ -261,23 +238,26 @@ public class Kafka
 
     // Command Line d1.trinity.dev:9092 simFile simFile_1000_10s.dat 1000 10000
 
-    if (args.length != 5 && args.length != 6)
+    if (args.length < 5 || args.length > 7)
     {
-      System.err.print("Usage: Kafka <broker-list-or-hub-name> <topic> <file> <rate> <numrecords> (<burst-delay-ms>)\n");
+      System.err.print("Usage: Kafka <broker-list-or-hub-name> <topic> <file-or-sim:numPlanes[:seed]> <rate-or-profile.json> <numrecords> (<burst-delay-ms>) (<num-threads>)\n");
     }
     else
     {
 
       String brokers = args[0];
       Kafka t = new Kafka(brokers, args[1]);
-      if (args.length == 5)
+      int burstDelay = 0;
+      int numThreads = 1;
+      if (args.length >= 6)
       {
-        t.sendFile(args[2], Integer.parseInt(args[3]), Integer.parseInt(args[4]), 0);
+        burstDelay = Integer.parseInt(args[5]);
       }
-      else
+      if (args.length == 7)
       {
-        t.sendFile(args[2], Integer.parseInt(args[3]), Integer.parseInt(args[4]), Integer.parseInt(args[5]));
+        numThreads = Integer.parseInt(args[6]);
       }
+      t.sendFile(args[2], RateProfile.parse(args[3]), Integer.parseInt(args[4]), burstDelay, numThreads);
 
     }
 
@@ -0,0 +1,42 @@
+/*
+ * (C) Copyright 2017 David Jennings
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     David Jennings
+ */
+package com.esri.rttest.send;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/*
+ * Source of lines for the Kafka sender.
+ *
+ * Implementations never run out of lines and are used by one sending thread.
+ */
+public interface LineSource extends Closeable
+{
+
+  /**
+   * Returns the next line without the line terminator.
+   * <p>
+   * The position and limit of the returned buffer mark the line. The buffer is only valid until the next call.
+   *
+   * @return the next line
+   * @throws IOException if the line can not be read
+   */
+  ByteBuffer next() throws IOException;
+}
@@ -0,0 +1,221 @@
+/*
+ * (C) Copyright 2017 David Jennings
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     David Jennings
+ */
+package com.esri.rttest.send;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/*
+ * Hands out the lines of a file as slices of memory-mapped regions.
+ *
+ * The file is never read onto the heap; only a window of at most REGION_SIZE bytes
+ * is mapped at a time and lines are returned as views into that window. When the
+ * end of the file (or of the slice) is reached the source starts again from the beginning.
+ *
+ * Not thread safe; use one source per sending thread.
+ */
+public class MappedLineSource implements LineSource
+{
+
+  // Size of each mapped window; a single line can not be longer than this
+  static final long REGION_SIZE = 64L * 1024 * 1024;
+
+  private final RandomAccessFile file;
+  private final FileChannel channel;
+  private final long size;
+
+  private MappedByteBuffer region;
+  private long regionStart;
+  private long regionEnd;
+
+  // View handed back to the caller; repositioned for every line
+  private ByteBuffer line;
+
+  // Lines starting in [sliceStart, sliceEnd) belong to this source
+  private long sliceStart;
+  private long sliceEnd;
+
+  // Absolute file position of the next line
+  private long pos;
+
+  public MappedLineSource(String filename) throws IOException
+  {
+    this(filename, 0, Long.MAX_VALUE);
+  }
+
+  /**
+   * Creates a source over the lines that start in the byte range [start, end) of the file.
+   * <p>
+   * The range is moved forward to line boundaries so that sources created with adjacent ranges never
+   * share a line. If the range holds no line start the whole file is used instead.
+   *
+   * @param filename File with lines of data
+   * @param start    First byte of the slice
+   * @param end      Byte after the end of the slice
+   * @throws IOException if the file can not be opened or is empty
+   */
+  public MappedLineSource(String filename, long start, long end) throws IOException
+  {
+    this.file = new RandomAccessFile(filename, "r");
+    this.channel = file.getChannel();
+    this.size = channel.size();
+
+    if (size == 0)
+    {
+      close();
+      throw new IOException("File is empty: " + filename);
+    }
+
+    this.sliceStart = alignToLine(start);
+    this.sliceEnd = alignToLine(end);
+    if (sliceStart >= sliceEnd)
+    {
+      sliceStart = 0;
+      sliceEnd = size;
+    }
+
+    this.pos = sliceStart;
+    map(sliceStart);
+  }
+
+  /**
+   * Returns the next line without the line terminator.
+   * <p>
+   * The returned buffer is a view into the mapped file. Its position and limit mark the line and it is
+   * only valid until the next call.
+   *
+   * @return view of the next line
+   * @throws IOException if a region can not be mapped or a line is longer than REGION_SIZE
+   */
+  @Override
+  public ByteBuffer next() throws IOException
+  {
+    if (pos >= sliceEnd)
+    {
+      // Reached the end of the slice; resend from start
+      pos = sliceStart;
+    }
+
+    if (pos < regionStart || pos >= regionEnd)
+    {
+      map(pos);
+    }
+
+    long eol = findNewline(pos);
+    if (eol < 0)
+    {
+      if (regionEnd < size)
+      {
+        // Line runs past the mapped window; remap starting at the line
+        map(pos);
+        eol = findNewline(pos);
+        if (eol < 0 && regionEnd < size)
+        {
+          throw new IOException("Line at offset " + pos + " is longer than " + REGION_SIZE + " bytes");
+        }
+      }
+      if (eol < 0)
+      {
+        // Last line of the file without a terminating newline
+        eol = size;
+      }
+    }
+
+    long end = eol;
+    if (end > pos && region.get((int) (end - 1 - regionStart)) == '\r')
+    {
+      end -= 1;
+    }
+
+    line.limit((int) (end - regionStart));
+    line.position((int) (pos - regionStart));
+
+    pos = eol + 1;
+
+    return line;
+  }
+
+  /**
+   * @return size of the file in bytes
+   */
+  public long size()
+  {
+    return size;
+  }
+
+  /**
+   * @param offset byte offset in the file
+   * @return offset of the first line that starts at or after offset
+   */
+  private long alignToLine(long offset) throws IOException
+  {
+    if (offset <= 0)
+    {
+      return 0;
+    }
+    if (offset >= size)
+    {
+      return size;
+    }
+
+    // A line starts at offset if the byte before it ends a line
+    map(offset - 1);
+    long eol = findNewline(offset - 1);
+    while (eol < 0 && regionEnd < size)
+    {
+      map(regionEnd);
+      eol = findNewline(regionStart);
+    }
+    return eol < 0 ? size : eol + 1;
+  }
+
+  private long findNewline(long from)
+  {
+    int i = (int) (from - regionStart);
+    int n = (int) (regionEnd - regionStart);
+    while (i < n)
+    {
+      if (region.get(i) == '\n')
+      {
+        return regionStart + i;
+      }
+      i += 1;
+    }
+    return -1;
+  }
+
+  private void map(long start) throws IOException
+  {
+    long len = Math.min(REGION_SIZE, size - start);
+    region = channel.map(FileChannel.MapMode.READ_ONLY, start, len);
+    regionStart = start;
+    regionEnd = start + len;
+    line = region.duplicate();
+  }
+
+  @Override
+  public void close() throws IOException
+  {
+    channel.close();
+    file.close();
+  }
+}
@@ -0,0 +1,166 @@
+/*
+ * (C) Copyright 2017 David Jennings
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     David Jennings
+ */
+package com.esri.rttest.send;
+
+import java.util.concurrent.locks.LockSupport;
+
+/*
+ * Paces sends to a requested rate.
+ *
+ * Every send is given an absolute deadline: start + n / rate. Deadlines are computed
+ * from the number of sends so far instead of from the previous send, so errors never
+ * accumulate. When the next deadline is far away the thread parks; only the last
+ * SPIN_NANOS are spent spinning. If the sender falls behind (GC pause, slow producer)
+ * the deadlines that were missed are released immediately until it is back on schedule.
+ *
+ * With a RateProfile the rate changes over time; the gap after each send is taken from
+ * the profile's rate at that send's deadline.
+ *
+ * Not thread safe; use one Pacer per sending thread.
+ */
+public class Pacer
+{
+
+  // Waits shorter than this are spun; parking can wake up tens of microseconds late, and any
+  // sends that became due while parked are released back to back when the thread wakes up
+  static final long SPIN_NANOS = 2_000L;
+
+  // Profiles can go down to 0; the gap is capped so the pacer notices when the rate comes back up
+  static final double MIN_RATE = 1.0;
+
+  private final long start;
+  private final RateProfile profile;
+
+  // Fixed rate: deadlines are start + issued * nsPerPermit; 0 when pacing a profile
+  private final double nsPerPermit;
+
+  // Profile: offset of the next deadline from start
+  private double nextOffset;
+
+  // Number of permits handed out so far
+  private long issued;
+
+  /**
+   * @param rate Permits per second
+   */
+  public Pacer(double rate)
+  {
+    if (rate <= 0)
+    {
+      throw new IllegalArgumentException("rate must be greater than 0");
+    }
+    this.profile = null;
+    this.nsPerPermit = 1000000000.0 / rate;
+    this.start = System.nanoTime();
+    this.issued = 0;
+  }
+
+  /**
+   * @param profile Permits per second over time
+   */
+  public Pacer(RateProfile profile)
+  {
+    this.profile = profile;
+    this.nsPerPermit = 0;
+    this.nextOffset = 0;
+    this.start = System.nanoTime();
+    this.issued = 0;
+  }
+
+  /**
+   * Waits for the next send.
+   *
+   * @return the deadline the send was scheduled for (System.nanoTime)
+   * @throws InterruptedException if the thread is interrupted while waiting
+   */
+  public long acquire() throws InterruptedException
+  {
+    return acquire(1);
+  }
+
+  /**
+   * Waits until a burst of sends is due.
+   * <p>
+   * The burst is scheduled at the deadline of its first send; the following burst is due once all
+   * permits of this burst have been paid for.
+   *
+   * @param permits Number of sends in the burst
+   * @return the deadline the burst was scheduled for (System.nanoTime)
+   * @throws InterruptedException if the thread is interrupted while waiting
+   */
+  public long acquire(int permits) throws InterruptedException
+  {
+    long deadline;
+    if (profile == null)
+    {
+      deadline = start + (long) (issued * nsPerPermit);
+    }
+    else
+    {
+      deadline = start + (long) nextOffset;
+      nextOffset += permits * 1000000000.0 / Math.max(MIN_RATE, profile.rateAt(nextOffset / 1000000000.0));
+    }
+    issued += permits;
+
+    long remaining = deadline - System.nanoTime();
+    while (remaining > SPIN_NANOS)
+    {
+      LockSupport.parkNanos(remaining - SPIN_NANOS);
+      if (Thread.interrupted())
+      {
+        throw new InterruptedException();
+      }
+      remaining = deadline - System.nanoTime();
+    }
+    while (remaining > 0)
+    {
+      remaining = deadline - System.nanoTime();
+    }
+
+    return deadline;
+  }
+
+  /**
+   * @return Permits per second for the next send
+   */
+  public double getRate()
+  {
+    if (profile == null)
+    {
+      return 1000000000.0 / nsPerPermit;
+    }
+    return Math.max(MIN_RATE, profile.rateAt(nextOffset / 1000000000.0));
+  }
+
+  /**
+   * @return true once the schedule has passed the end of the profile; never for a fixed rate
+   */
+  public boolean isDone()
+  {
+    return profile != null && nextOffset / 1000000000.0 >= profile.getDuration();
+  }
+
+  /**
+   * @return Number of permits handed out so far
+   */
+  public long getIssued()
+  {
+    return issued;
+  }
+}
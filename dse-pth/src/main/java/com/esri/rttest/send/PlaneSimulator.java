@@ -0,0 +1,358 @@
+/*
+ * (C) Copyright 2017 David Jennings
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     David Jennings
+ */
+package com.esri.rttest.send;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Date;
+import java.util.SplittableRandom;
+
+/*
+ * Simulates a fleet of planes moving along their bearing at their speed.
+ *
+ * Planes report round robin; each report moves the plane stepMillis forward along the great
+ * circle of its bearing from its current position, updates lon, lat, the bearing and the
+ * remaining dist, and
+ * picks a new route once the plane arrives. State is kept in primitive arrays so
+ * millions of planes fit in a few hundred MB, and each report costs the same no
+ * matter how many planes there are.
+ *
+ * Routes (speed, dist, airports) are drawn from the sample planes in Cassandra with a
+ * seeded random, so the same seed, plane range and step always produce the same records.
+ *
+ * Not thread safe; give each sending thread its own range of plane ids.
+ */
+public class PlaneSimulator implements LineSource
+{
+
+  // Prefix of the file argument that selects the simulator: sim:<numPlanes>[:<seed>]
+  static final String SPEC_PREFIX = "sim:";
+
+  private static final double EARTH_RADIUS_KM = 6371.0;
+
+  private final int firstId;
+  private final int numPlanes;
+  private final SplittableRandom random;
+  private final long startTs;
+  private final long stepMillis;
+
+  // Per plane state; speed in km/h, dist in km, bearing and position in degrees
+  private final double[] speed;
+  private final double[] dist;
+  private final double[] bearing;
+  private final double[] lon;
+  private final double[] lat;
+  private final short[] route;
+
+  // Per plane movement for one step, worked out when the route is picked: km, and sin and cos of the angle it spans
+  private final double[] stepKm;
+  private final double[] sinStep;
+  private final double[] cosStep;
+
+  // Airport names as UTF-8 for the CSV lines
+  private final byte[][] orig;
+  private final byte[][] dest;
+
+  // Next plane to report and number of full passes over the fleet
+  private int next;
+  private long cycle;
+
+  // Reused for the CSV lines and the geometry text
+  private byte[] buf = new byte[512];
+  private ByteBuffer view = ByteBuffer.wrap(buf);
+  private int len;
+  private final StringBuilder geometry = new StringBuilder(64);
+
+  /**
+   * @param firstId    Id of the first plane
+   * @param numPlanes  Number of planes simulated
+   * @param seed       Seed for the initial positions and the routes
+   * @param startTs    Timestamp (ms) of the first report of each plane
+   * @param stepMillis Simulated time between two reports of the same plane
+   */
+  public PlaneSimulator(int firstId, int numPlanes, long seed, long startTs, long stepMillis)
+  {
+    this.firstId = firstId;
+    this.numPlanes = numPlanes;
+    this.random = new SplittableRandom(seed ^ (firstId * 0x9E3779B97F4A7C15L));
+    this.startTs = startTs;
+    this.stepMillis = stepMillis;
+
+    this.speed = new double[numPlanes];
+    this.dist = new double[numPlanes];
+    this.bearing = new double[numPlanes];
+    this.lon = new double[numPlanes];
+    this.lat = new double[numPlanes];
+    this.route = new short[numPlanes];
+    this.stepKm = new double[numPlanes];
+    this.sinStep = new double[numPlanes];
+    this.cosStep = new double[numPlanes];
+
+    int numRoutes = Cassandra.planeData.size();
+    this.orig = new byte[numRoutes][];
+    this.dest = new byte[numRoutes][];
+    for (int r = 0; r < numRoutes; r++)
+    {
+      orig[r] = Cassandra.planeData.get(r).getOrig().getBytes(StandardCharsets.UTF_8);
+      dest[r] = Cassandra.planeData.get(r).getDest().getBytes(StandardCharsets.UTF_8);
+    }
+
+    for (int i = 0; i < numPlanes; i++)
+    {
+      // spread the planes over the globe (uniform on the sphere) and start each somewhere along a route
+      lon[i] = random.nextDouble() * 360.0 - 180.0;
+      lat[i] = Math.toDegrees(Math.asin(random.nextDouble() * 2.0 - 1.0));
+      newRoute(i);
+      dist[i] = random.nextDouble() * dist[i];
+    }
+
+    this.next = 0;
+    this.cycle = 0;
+  }
+
+  /**
+   * @param spec     sim:numPlanes[:seed]
+   * @param part     Which part of the fleet to simulate (0 based)
+   * @param parts    Number of parts the fleet is split into; one per sending thread
+   * @param rate     Lines per second this part will be sent at; sets the simulated step
+   * @return simulator for the part of the fleet
+   */
+  public static PlaneSimulator fromSpec(String spec, int part, int parts, int rate)
+  {
+    String[] fields = spec.substring(SPEC_PREFIX.length()).split(":");
+    int total = Integer.parseInt(fields[0]);
+    long seed = fields.length > 1 ? Long.parseLong(fields[1]) : 1L;
+
+    int first = (int) ((long) total * part / parts);
+    int end = (int) ((long) total * (part + 1) / parts);
+    int numPlanes = Math.max(1, end - first);
+
+    // Each plane reports once per pass over the fleet; a pass takes numPlanes / rate seconds
+    long stepMillis = Math.max(1L, numPlanes * 1000L / Math.max(1, rate));
+
+    return new PlaneSimulator(first, numPlanes, seed, System.currentTimeMillis(), stepMillis);
+  }
+
+  public static boolean isSpec(String s)
+  {
+    return s.startsWith(SPEC_PREFIX);
+  }
+
+  private void newRoute(int i)
+  {
+    int r = random.nextInt(orig.length);
+    Plane template = Cassandra.planeData.get(r);
+    route[i] = (short) r;
+    // vary the sample speed and distance by +/- 20% and fly in any direction
+    speed[i] = template.getSpeed() > 0 ? template.getSpeed() * (0.8 + 0.4 * random.nextDouble()) : 150.0 + 200.0 * random.nextDouble();
+    dist[i] = template.getDist() * (0.8 + 0.4 * random.nextDouble());
+    bearing[i] = random.nextDouble() * 360.0 - 180.0;
+
+    stepKm[i] = speed[i] * stepMillis / 3600000.0;
+    sinStep[i] = Math.sin(stepKm[i] / EARTH_RADIUS_KM);
+    cosStep[i] = Math.cos(stepKm[i] / EARTH_RADIUS_KM);
+  }
+
+  /**
+   * Moves the next plane one step. Returns the index of the plane that moved.
+   */
+  private int advance()
+  {
+    int i = next;
+    next += 1;
+    if (next == numPlanes)
+    {
+      next = 0;
+      cycle += 1;
+    }
+
+    // Spherical forward formula: the point stepKm along the great circle at the bearing, and the bearing there.
+    // It holds at any latitude; a plane flying over a pole comes down the other side heading south.
+    double lat1 = Math.toRadians(lat[i]);
+    double theta = Math.toRadians(bearing[i]);
+    double sinLat1 = Math.sin(lat1);
+    double cosLat1 = Math.cos(lat1);
+    double sinTheta = Math.sin(theta);
+    double cosTheta = Math.cos(theta);
+
+    double sinLat2 = Math.max(-1.0, Math.min(1.0, sinLat1 * cosStep[i] + cosLat1 * sinStep[i] * cosTheta));
+    double dLon = Math.atan2(sinTheta * sinStep[i] * cosLat1, cosStep[i] - sinLat1 * sinLat2);
+
+    lat[i] = Math.toDegrees(Math.asin(sinLat2));
+    lon[i] = normalizeLon(lon[i] + Math.toDegrees(dLon));
+    bearing[i] = Math.toDegrees(Math.atan2(sinTheta * cosLat1, cosLat1 * cosStep[i] * cosTheta - sinLat1 * sinStep[i]));
+
+    dist[i] -= stepKm[i];
+    if (dist[i] <= 0)
+    {
+      newRoute(i);
+    }
+
+    return i;
+  }
+
+  /**
+   * @return lon in [-180, 180)
+   */
+  static double normalizeLon(double lon)
+  {
+    return ((lon + 180.0) % 360.0 + 360.0) % 360.0 - 180.0;
+  }
+
+  private long ts()
+  {
+    return startTs + cycle * stepMillis;
+  }
+
+  /**
+   * Moves the next plane and returns its report as a row for the planes table:
+   * id, ts, speed, dist, bearing, rtid, orig, dest, secstodep, lon, lat, geometry
+   *
+   * @return values to bind to the insert statement
+   */
+  public Object[] nextRecord()
+  {
+    int i = advance();
+    Plane template = Cassandra.planeData.get(route[i]);
+
+    geometry.setLength(0);
+    geometry.append("POINT (").append(lon[i]).append(' ').append(lat[i]).append(')');
+
+    return new Object[]{Integer.toString(firstId + i), new Date(ts()), speed[i], dist[i], bearing[i], route[i] + 1, template.getOrig(), template.getDest(), -1, lon[i], lat[i], geometry.toString()};
+  }
+
+  /**
+   * Moves the next plane and returns its report as a CSV line in the layout of the planes files:
+   * id,ts,speed,dist,bearing,rtid,orig,dest,secsToDep,lon,lat
+   * <p>
+   * The line is written into a reused buffer; no objects are created per line.
+   */
+  @Override
+  public ByteBuffer next()
+  {
+    int i = advance();
+    int r = route[i];
+
+    len = 0;
+    appendLong(firstId + i);
+    append((byte) ',');
+    appendLong(ts());
+    append((byte) ',');
+    appendFixed(speed[i], 2);
+    append((byte) ',');
+    appendFixed(dist[i], 2);
+    append((byte) ',');
+    appendFixed(bearing[i], 2);
+    append((byte) ',');
+    appendLong(r + 1);
+    append((byte) ',');
+    append(orig[r]);
+    append((byte) ',');
+    append(dest[r]);
+    append((byte) ',');
+    appendLong(-1);
+    append((byte) ',');
+    appendFixed(lon[i], 5);
+    append((byte) ',');
+    appendFixed(lat[i], 5);
+
+    view.clear();
+    view.limit(len);
+    return view;
+  }
+
+  private void ensure(int n)
+  {
+    if (len + n > buf.length)
+    {
+      byte[] grown = new byte[Math.max(buf.length * 2, len + n)];
+      System.arraycopy(buf, 0, grown, 0, len);
+      buf = grown;
+      view = ByteBuffer.wrap(buf);
+    }
+  }
+
+  private void append(byte b)
+  {
+    ensure(1);
+    buf[len++] = b;
+  }
+
+  private void append(byte[] bytes)
+  {
+    ensure(bytes.length);
+    System.arraycopy(bytes, 0, buf, len, bytes.length);
+    len += bytes.length;
+  }
+
+  private void appendLong(long v)
+  {
+    ensure(20);
+    if (v < 0)
+    {
+      buf[len++] = '-';
+      v = -v;
+    }
+    int start = len;
+    do
+    {
+      buf[len++] = (byte) ('0' + (v % 10));
+      v /= 10;
+    }
+    while (v > 0);
+    // digits were written backwards
+    for (int a = start, b = len - 1; a < b; a++, b--)
+    {
+      byte t = buf[a];
+      buf[a] = buf[b];
+      buf[b] = t;
+    }
+  }
+
+  private static final long[] POW10 = {1L, 10L, 100L, 1000L, 10000L, 100000L, 1000000L};
+
+  private void appendFixed(double v, int decimals)
+  {
+    long scaled = Math.round(Math.abs(v) * POW10[decimals]);
+    if (v < 0 && scaled != 0)
+    {
+      append((byte) '-');
+    }
+    appendLong(scaled / POW10[decimals]);
+    append((byte) '.');
+    long frac = scaled % POW10[decimals];
+    ensure(decimals);
+    for (int d = decimals - 1; d >= 0; d--)
+    {
+      buf[len + d] = (byte) ('0' + (frac % 10));
+      frac /= 10;
+    }
+    len += decimals;
+  }
+
+  public int getNumPlanes()
+  {
+    return numPlanes;
+  }
+
+  @Override
+  public void close()
+  {
+  }
+}
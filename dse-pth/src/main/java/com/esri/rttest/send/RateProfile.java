@@ -0,0 +1,330 @@
+/*
+ * (C) Copyright 2017 David Jennings
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     David Jennings
+ */
+package com.esri.rttest.send;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/*
+ * Rate that changes over time; used by the Pacer in place of a fixed rate.
+ *
+ * A profile is a list of segments played one after the other. It is loaded from a JSON plan:
+ *
+ * {
+ *   "repeat": false,
+ *   "segments": [
+ *     {"type": "constant", "rate": 1000, "seconds": 60},
+ *     {"type": "ramp", "from": 1000, "to": 50000, "seconds": 300},
+ *     {"type": "step", "from": 10000, "to": 50000, "steps": 5, "seconds": 300},
+ *     {"type": "sine", "base": 20000, "amplitude": 10000, "period": 600, "seconds": 1200},
+ *     {"type": "spike", "rate": 10000, "peak": 80000, "every": 60, "duration": 5, "seconds": 300}
+ *   ]
+ * }
+ *
+ * Rates are lines per second for all threads together; each thread paces a scaled copy.
+ * The profile ends after the last segment unless repeat is true.
+ */
+public class RateProfile
+{
+
+  private static class Segment
+  {
+    final String type;
+    final double seconds;
+    final double from;
+    final double to;
+    final int steps;
+    final double period;
+    final double every;
+    final double duration;
+
+    Segment(JSONObject json)
+    {
+      this.type = json.getString("type");
+      this.seconds = json.getDouble("seconds");
+      switch (type)
+      {
+        case "constant":
+          this.from = json.getDouble("rate");
+          this.to = from;
+          this.steps = 1;
+          this.period = 0;
+          this.every = 0;
+          this.duration = 0;
+          break;
+        case "ramp":
+          this.from = json.getDouble("from");
+          this.to = json.getDouble("to");
+          this.steps = 0;
+          this.period = 0;
+          this.every = 0;
+          this.duration = 0;
+          break;
+        case "step":
+          this.from = json.getDouble("from");
+          this.to = json.getDouble("to");
+          this.steps = json.getInt("steps");
+          this.period = 0;
+          this.every = 0;
+          this.duration = 0;
+          break;
+        case "sine":
+          // from is the base rate and to the amplitude
+          this.from = json.getDouble("base");
+          this.to = json.getDouble("amplitude");
+          this.steps = 0;
+          this.period = json.getDouble("period");
+          this.every = 0;
+          this.duration = 0;
+          break;
+        case "spike":
+          // from is the rate between spikes and to the rate during a spike
+          this.from = json.getDouble("rate");
+          this.to = json.getDouble("peak");
+          this.steps = 0;
+          this.period = 0;
+          this.every = json.getDouble("every");
+          this.duration = json.getDouble("duration");
+          break;
+        default:
+          throw new IllegalArgumentException("Unknown segment type: " + type);
+      }
+      if (seconds <= 0)
+      {
+        throw new IllegalArgumentException("seconds must be greater than 0 in " + json);
+      }
+      if (type.equals("step") && steps < 1)
+      {
+        throw new IllegalArgumentException("steps must be at least 1 in " + json);
+      }
+      if (type.equals("sine") && period <= 0)
+      {
+        throw new IllegalArgumentException("period must be greater than 0 in " + json);
+      }
+      if (type.equals("spike") && (every <= 0 || duration < 0))
+      {
+        throw new IllegalArgumentException("every must be greater than 0 and duration at least 0 in " + json);
+      }
+    }
+
+    Segment(double rate)
+    {
+      this.type = "constant";
+      this.seconds = Double.POSITIVE_INFINITY;
+      this.from = rate;
+      this.to = rate;
+      this.steps = 1;
+      this.period = 0;
+      this.every = 0;
+      this.duration = 0;
+    }
+
+    /**
+     * @param t Seconds since the start of the segment
+     */
+    double rateAt(double t)
+    {
+      switch (type)
+      {
+        case "ramp":
+          return from + (to - from) * t / seconds;
+        case "step":
+          if (steps <= 1)
+          {
+            return from;
+          }
+          int step = Math.min(steps - 1, (int) (t * steps / seconds));
+          return from + (to - from) * step / (steps - 1);
+        case "sine":
+          return from + to * Math.sin(2 * Math.PI * t / period);
+        case "spike":
+          return t % every < duration ? to : from;
+        default:
+          return from;
+      }
+    }
+
+    double maxRate()
+    {
+      switch (type)
+      {
+        case "sine":
+          return from + Math.abs(to);
+        default:
+          return Math.max(from, to);
+      }
+    }
+  }
+
+  private final List<Segment> segments;
+  private final boolean repeat;
+  private final double scale;
+  private final double duration;
+
+  private RateProfile(List<Segment> segments, boolean repeat, double scale)
+  {
+    if (segments.isEmpty())
+    {
+      throw new IllegalArgumentException("A rate profile needs at least one segment");
+    }
+    this.segments = segments;
+    this.repeat = repeat;
+    this.scale = scale;
+
+    double total = 0;
+    for (Segment s : segments)
+    {
+      total += s.seconds;
+    }
+    this.duration = total;
+
+    // the senders split the highest rate over their threads; at 0 they would send nothing
+    if (!(getMaxRate() > 0))
+    {
+      throw new IllegalArgumentException("A rate profile needs a rate above 0");
+    }
+  }
+
+  /**
+   * @param rate Lines per second
+   * @return profile that stays at rate and never ends
+   */
+  public static RateProfile constant(double rate)
+  {
+    return new RateProfile(Collections.singletonList(new Segment(rate)), false, 1.0);
+  }
+
+  /**
+   * @param rate    Lines per second
+   * @param seconds How long to send
+   * @return profile that stays at rate and ends after seconds
+   */
+  public static RateProfile constant(double rate, double seconds)
+  {
+    JSONObject segment = new JSONObject().put("type", "constant").put("rate", rate).put("seconds", seconds);
+    return new RateProfile(Collections.singletonList(new Segment(segment)), false, 1.0);
+  }
+
+  public static RateProfile fromJson(JSONObject json)
+  {
+    List<Segment> segments = new ArrayList<>();
+    JSONArray array = json.getJSONArray("segments");
+    for (int i = 0; i < array.length(); i++)
+    {
+      segments.add(new Segment(array.getJSONObject(i)));
+    }
+    return new RateProfile(segments, json.optBoolean("repeat", false), 1.0);
+  }
+
+  public static RateProfile load(String filename) throws IOException
+  {
+    String text = new String(Files.readAllBytes(Paths.get(filename)), StandardCharsets.UTF_8);
+    return fromJson(new JSONObject(text));
+  }
+
+  /**
+   * Parses the rate argument of the senders: either a number of lines per second or the path of a JSON plan.
+   *
+   * @param arg rate or plan file
+   * @return the profile
+   * @throws IOException if the plan can not be read
+   */
+  public static RateProfile parse(String arg) throws IOException
+  {
+    try
+    {
+      return constant(Integer.parseInt(arg));
+    }
+    catch (NumberFormatException e)
+    {
+      return load(arg);
+    }
+  }
+
+  /**
+   * @param factor Share of the rate, e.g. the share of one sending thread
+   * @return the same profile with every rate multiplied by factor
+   */
+  public RateProfile scale(double factor)
+  {
+    return new RateProfile(segments, repeat, scale * factor);
+  }
+
+  /**
+   * @param seconds Seconds since the start of the profile
+   * @return Lines per second at that time; rate of the end of the profile once it is done
+   */
+  public double rateAt(double seconds)
+  {
+    double t = seconds;
+    if (repeat)
+    {
+      t = t % duration;
+    }
+
+    for (Segment s : segments)
+    {
+      if (t < s.seconds)
+      {
+        return s.rateAt(t) * scale;
+      }
+      t -= s.seconds;
+    }
+
+    Segment last = segments.get(segments.size() - 1);
+    return last.rateAt(last.seconds) * scale;
+  }
+
+  /**
+   * @return Highest rate reached by the profile
+   */
+  public double getMaxRate()
+  {
+    double max = 0;
+    for (Segment s : segments)
+    {
+      max = Math.max(max, s.maxRate());
+    }
+    return max * scale;
+  }
+
+  /**
+   * @return true for a fixed rate made with constant(rate)
+   */
+  public boolean isConstant()
+  {
+    return segments.size() == 1 && segments.get(0).seconds == Double.POSITIVE_INFINITY;
+  }
+
+  /**
+   * @return Length of the profile in seconds; infinite for a constant rate or when it repeats
+   */
+  public double getDuration()
+  {
+    return repeat ? Double.POSITIVE_INFINITY : duration;
+  }
+}
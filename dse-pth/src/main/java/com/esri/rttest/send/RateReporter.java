@@ -0,0 +1,271 @@
+/*
+ * (C) Copyright 2017 David Jennings
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     David Jennings
+ */
+package com.esri.rttest.send;
+
+import com.esri.rttest.Metrics;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleUnaryOperator;
+import java.util.function.Supplier;
+
+/*
+ * Counts lines sent by any number of sending threads and prints one combined
+ * count and rate line every second.
+ *
+ * Output lines are: Count,Rate /s (average since start)
+ *
+ * When latencies are recorded the line also has the latency percentiles in ms for
+ * the last second: Count,Rate /s,p50,p99,p99.9,max
+ * and close() prints the percentiles for the whole run.
+ *
+ * When a target rate is set with columns (rate profiles) the line has the target rate and the
+ * rate achieved in the last second after the average: Count,Rate /s,Target /s,Achieved /s,...
+ *
+ * Senders can append their own columns to every line with setColumns.
+ *
+ * With -Dpth.metrics.port the same values are served for Prometheus (see Metrics):
+ * count, errors, achieved and target rate, and the latency histogram.
+ */
+public class RateReporter
+{
+
+  private final String name;
+  private final LongAdder count = new LongAdder();
+  private final LongAdder errors = new LongAdder();
+  private final long st;
+  private final Timer timer;
+
+  // Written by the producer callback threads; read once a second by the timer
+  private final boolean trackLatency;
+  private final Recorder recorder;
+  private final Histogram total;
+  private Histogram interval;
+
+  private volatile Supplier<String> columns;
+  private volatile DoubleUnaryOperator target;
+  private volatile boolean targetColumns;
+  private volatile Metrics.Collector metrics;
+  private final Metrics.Collector collector = this::collect;
+
+  // Rate over the last second, for the metrics
+  private volatile double achieved;
+
+  // Count and time of the previous line; only used by print
+  private long lastCnt;
+  private long lastTime;
+
+  public RateReporter()
+  {
+    this(false);
+  }
+
+  public RateReporter(boolean trackLatency)
+  {
+    this("sender", trackLatency);
+  }
+
+  /**
+   * @param name         Sender name; the sender label of the metrics
+   * @param trackLatency Set to true when the senders call recordLatency
+   */
+  public RateReporter(String name, boolean trackLatency)
+  {
+    this.name = name;
+    this.st = System.currentTimeMillis();
+    this.lastCnt = 0;
+    this.lastTime = st;
+    this.trackLatency = trackLatency;
+    this.recorder = new Recorder(3);
+    this.total = new Histogram(3);
+    this.interval = null;
+
+    this.timer = new Timer("rate-reporter", true);
+    this.timer.scheduleAtFixedRate(new TimerTask()
+    {
+      @Override
+      public void run()
+      {
+        print();
+      }
+    }, 1000, 1000);
+
+    Metrics.register(collector);
+  }
+
+  /**
+   * Called by the sending threads for each line sent.
+   */
+  public void increment()
+  {
+    count.increment();
+  }
+
+  public void add(long n)
+  {
+    count.add(n);
+  }
+
+  public long getCount()
+  {
+    return count.sum();
+  }
+
+  /**
+   * Records the time from when a line was scheduled to be sent until it was acknowledged.
+   * <p>
+   * Measuring from the scheduled time instead of the time send was called corrects for coordinated
+   * omission: when sends are held up the lines waiting behind them are charged for the wait.
+   *
+   * @param nanos Latency in nanoseconds
+   */
+  public void recordLatency(long nanos)
+  {
+    recorder.recordValue(nanos < 0 ? 0 : nanos);
+  }
+
+  /**
+   * Called by the sending threads for each line that failed.
+   */
+  public void error()
+  {
+    errors.increment();
+  }
+
+  public long getErrors()
+  {
+    return errors.sum();
+  }
+
+  /**
+   * @param columns Called once a second; the result is appended to the output line after a comma
+   */
+  public void setColumns(Supplier<String> columns)
+  {
+    this.columns = columns;
+  }
+
+  /**
+   * @param target  Called once a second and on each scrape with the seconds since start; returns the rate the senders are aiming for
+   * @param columns Add the target and achieved rate to the lines; the target is exported as a metric either way
+   */
+  public void setTarget(DoubleUnaryOperator target, boolean columns)
+  {
+    this.target = target;
+    this.targetColumns = columns;
+  }
+
+  /**
+   * @param metrics Called on each scrape to add the sender's own metrics
+   */
+  public void setMetrics(Metrics.Collector metrics)
+  {
+    this.metrics = metrics;
+  }
+
+  /**
+   * Stops the once a second output and prints the final count and rate.
+   */
+  public void close()
+  {
+    timer.cancel();
+    print();
+    Metrics.unregister(collector);
+
+    if (trackLatency)
+    {
+      System.out.format("Latency ms | p50: %.3f | p99: %.3f | p99.9: %.3f | max: %.3f | errors: %d\n",
+          toMillis(total.getValueAtPercentile(50)), toMillis(total.getValueAtPercentile(99)),
+          toMillis(total.getValueAtPercentile(99.9)), toMillis(total.getMaxValue()), errors.sum());
+    }
+  }
+
+  private synchronized void print()
+  {
+    long cnt = count.sum();
+    long now = System.currentTimeMillis();
+    Double curRate = (double) cnt / (now - st) * 1000;
+
+    String line = cnt + "," + String.format("%.0f", curRate);
+
+    achieved = now > lastTime ? (double) (cnt - lastCnt) / (now - lastTime) * 1000 : 0;
+    DoubleUnaryOperator targetRate = target;
+    if (targetRate != null && targetColumns)
+    {
+      line += String.format(",%.0f,%.0f", targetRate.applyAsDouble((now - st) / 1000.0), achieved);
+    }
+    lastCnt = cnt;
+    lastTime = now;
+    if (trackLatency)
+    {
+      interval = recorder.getIntervalHistogram(interval);
+      total.add(interval);
+      line += String.format(",%.3f,%.3f,%.3f,%.3f",
+          toMillis(interval.getValueAtPercentile(50)), toMillis(interval.getValueAtPercentile(99)),
+          toMillis(interval.getValueAtPercentile(99.9)), toMillis(interval.getMaxValue()));
+    }
+
+    Supplier<String> extra = columns;
+    if (extra != null)
+    {
+      line += "," + extra.get();
+    }
+
+    System.out.println(line);
+  }
+
+  /**
+   * Writes the metrics for a scrape; synchronized with print so the latency histogram is not read while it is updated.
+   */
+  private synchronized void collect(StringBuilder out)
+  {
+    Metrics.header(out, "pth_sent_total", "counter", "Lines sent");
+    Metrics.sample(out, "pth_sent_total", count.sum(), "sender", name);
+    Metrics.header(out, "pth_send_errors_total", "counter", "Lines that failed to send");
+    Metrics.sample(out, "pth_send_errors_total", errors.sum(), "sender", name);
+    Metrics.header(out, "pth_send_rate", "gauge", "Lines sent per second over the last second");
+    Metrics.sample(out, "pth_send_rate", achieved, "sender", name);
+
+    DoubleUnaryOperator targetRate = target;
+    if (targetRate != null)
+    {
+      Metrics.header(out, "pth_send_target_rate", "gauge", "Lines per second the senders are aiming for");
+      Metrics.sample(out, "pth_send_target_rate", targetRate.applyAsDouble((System.currentTimeMillis() - st) / 1000.0), "sender", name);
+    }
+    if (trackLatency)
+    {
+      Metrics.header(out, "pth_send_latency_seconds", "histogram", "Time from when a line was scheduled until it was acknowledged");
+      Metrics.histogram(out, "pth_send_latency_seconds", total, "sender", name);
+    }
+
+    Metrics.Collector extra = metrics;
+    if (extra != null)
+    {
+      extra.collect(out);
+    }
+  }
+
+  private static double toMillis(long nanos)
+  {
+    return nanos / 1000000.0;
+  }
+}
@@ -0,0 +1,103 @@
+/*
+ * (C) Copyright 2017 David Jennings
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     David Jennings
+ */
+package com.esri.rttest.send;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ThreadLocalRandom;
+
+/*
+ * Builds Kafka keys and values as byte arrays without allocating per record.
+ *
+ * Values are the line followed by a newline, copied into an array that is reused for
+ * every line of the same length. Keys are a sequence number written as 16 hex digits
+ * into one reused array; the sequence starts at a random value so that threads and
+ * runs do not share keys.
+ *
+ * Reusing the arrays is safe because KafkaProducer copies the serialized key and value
+ * into its batch before send returns.
+ *
+ * Not thread safe; use one RecordFramer per sending thread.
+ */
+public class RecordFramer
+{
+
+  // Lines up to this length (including the newline) get a cached array
+  static final int MAX_CACHED_LENGTH = 64 * 1024;
+
+  private static final byte[] HEX = "0123456789abcdef".getBytes();
+
+  // byLength[n] is the reused array for values n bytes long
+  private byte[][] byLength = new byte[256][];
+
+  private final byte[] key = new byte[16];
+  private long sequence;
+
+  public RecordFramer()
+  {
+    this.sequence = ThreadLocalRandom.current().nextLong();
+  }
+
+  /**
+   * @param line view of the line as returned by MappedLineSource; consumed by this call
+   * @return bytes of the line followed by a newline; valid until the next line of the same length is framed
+   */
+  public byte[] frame(ByteBuffer line)
+  {
+    int length = line.remaining() + 1;
+
+    byte[] bytes;
+    if (length > MAX_CACHED_LENGTH)
+    {
+      bytes = new byte[length];
+    }
+    else
+    {
+      if (length >= byLength.length)
+      {
+        byte[][] grown = new byte[Math.min(MAX_CACHED_LENGTH + 1, Math.max(length + 1, byLength.length * 2))][];
+        System.arraycopy(byLength, 0, grown, 0, byLength.length);
+        byLength = grown;
+      }
+      bytes = byLength[length];
+      if (bytes == null)
+      {
+        bytes = new byte[length];
+        byLength[length] = bytes;
+      }
+    }
+
+    line.get(bytes, 0, length - 1);
+    bytes[length - 1] = '\n';
+    return bytes;
+  }
+
+  /**
+   * @return the next key; valid until the next call
+   */
+  public byte[] key()
+  {
+    long v = sequence++;
+    for (int i = key.length - 1; i >= 0; i--)
+    {
+      key[i] = HEX[(int) (v & 0xF)];
+      v >>>= 4;
+    }
+    return key;
+  }
+}
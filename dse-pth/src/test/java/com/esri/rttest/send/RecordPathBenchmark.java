@@ -0,0 +1,140 @@
+/*
+ * (C) Copyright 2017 David Jennings
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * Contributors:
+ *     David Jennings
+ */
+package com.esri.rttest.send;
+
+import org.apache.kafka.common.serialization.ByteArraySerializer;
+import org.apache.kafka.common.serialization.StringSerializer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Compares the per-record work of the Kafka sender before and after the byte-oriented path.
+ *
+ * stringPath: line + "\n", UUID.randomUUID().toString() key, StringSerializer for both
+ * bytePath:   MappedLineSource view framed by RecordFramer, hex sequence key, ByteArraySerializer
+ *
+ * Run with:
+ *   mvn test-compile dependency:build-classpath -Dmdep.outputFile=target/cp.txt -Dmdep.includeScope=test
+ *   java -cp target/classes:target/test-classes:$(cat target/cp.txt) com.esri.rttest.send.RecordPathBenchmark -prof gc -t 4
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RecordPathBenchmark
+{
+
+  private static final String TOPIC = "planes";
+  private static final int NUM_LINES = 10000;
+
+  private File file;
+  private List<String> lines;
+  private Iterator<String> linesIt;
+  private MappedLineSource source;
+  private RecordFramer framer;
+
+  private final StringSerializer stringSerializer = new StringSerializer();
+  private final ByteArraySerializer byteArraySerializer = new ByteArraySerializer();
+
+  @Setup
+  public void setup() throws IOException
+  {
+    // Lines in the planes layout: id,ts,speed,dist,bearing,rtid,orig,dest,secsToDep,lon,lat
+    Random random = new Random(7);
+    lines = new ArrayList<>();
+    for (int i = 0; i < NUM_LINES; i++)
+    {
+      lines.add(String.format("%d,%d,%.2f,%.2f,%.2f,%d,%s,%s,%d,%.5f,%.5f", i, 1506957079575L + i,
+          100 + random.nextDouble() * 300, random.nextDouble() * 10000, random.nextDouble() * 360 - 180,
+          i % 1000, "Origin Airport " + (i % 97), "Destination International Airport " + (i % 89), -1,
+          random.nextDouble() * 360 - 180, random.nextDouble() * 180 - 90));
+    }
+    linesIt = lines.iterator();
+
+    file = File.createTempFile("planes", ".csv");
+    file.deleteOnExit();
+    try (PrintWriter pw = new PrintWriter(file))
+    {
+      for (String line : lines)
+      {
+        pw.print(line);
+        pw.print('\n');
+      }
+    }
+    source = new MappedLineSource(file.getPath());
+    framer = new RecordFramer();
+  }
+
+  @TearDown
+  public void tearDown() throws IOException
+  {
+    source.close();
+    file.delete();
+  }
+
+  @Benchmark
+  public void stringPath(Blackhole bh)
+  {
+    if (!linesIt.hasNext())
+      linesIt = lines.iterator();
+
+    String line = linesIt.next() + "\n";
+    UUID uuid = UUID.randomUUID();
+
+    bh.consume(stringSerializer.serialize(TOPIC, uuid.toString()));
+    bh.consume(stringSerializer.serialize(TOPIC, line));
+  }
+
+  @Benchmark
+  public void bytePath(Blackhole bh) throws IOException
+  {
+    bh.consume(byteArraySerializer.serialize(TOPIC, framer.key()));
+    bh.consume(byteArraySerializer.serialize(TOPIC, framer.frame(source.next())));
+  }
+
+  public static void main(String[] args) throws Exception
+  {
+    String[] jmhArgs = new String[args.length + 1];
+    jmhArgs[0] = RecordPathBenchmark.class.getSimpleName();
+    System.arraycopy(args, 0, jmhArgs, 1, args.length);
+    org.openjdk.jmh.Main.main(jmhArgs);
+  }
+}
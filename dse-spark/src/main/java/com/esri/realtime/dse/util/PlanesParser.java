@@ -0,0 +1,316 @@
+package com.esri.realtime.dse.util;
+
+/**
+ * Parser for lines in the planes layout: id,ts,speed,dist,bearing,rtid,orig,dest,secsToDep,lon,lat
+ *
+ * The line is scanned once to find the field offsets; numbers are parsed straight from the
+ * characters of the line, so parsing allocates nothing. Only id, orig, dest and the geometry
+ * text are new Strings, as they are stored as text.
+ *
+ * Numbers give the same values as Long.parseLong, Integer.parseInt and Double.parseDouble; the
+ * few doubles that cannot be parsed exactly on the fast path (more than 15-16 significant digits
+ * or large exponents) are handed to Double.parseDouble.
+ *
+ * Fields may be quoted as in CSV ("" for a quote). Extra fields after lat are ignored.
+ *
+ * Not thread safe; the offsets and the geometry buffer are reused for each line.
+ */
+public final class PlanesParser
+{
+  public static final int FIELDS = 11;
+
+  // Powers of ten that are exact doubles
+  private static final double[] POW10 = {
+      1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10,
+      1e11, 1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+  };
+
+  // Largest mantissa that is an exact double
+  private static final long MAX_EXACT = 1L << 53;
+
+  private final int[] starts = new int[FIELDS];
+  private final int[] ends = new int[FIELDS];
+  private final boolean[] quoted = new boolean[FIELDS];
+  private final StringBuilder geometry = new StringBuilder(64);
+
+  private String line;
+  private long ts;
+  private double speed;
+  private double dist;
+  private double bearing;
+  private int rtid;
+  private int secsToDep;
+  private double lon;
+  private double lat;
+
+  /**
+   * Parses a line; the values are then read with the getters until the next call.
+   *
+   * @param line Line in the planes layout; a trailing line separator is ignored
+   * @throws IllegalArgumentException when the line has fewer than 11 fields
+   * @throws NumberFormatException when a number field is not a number
+   */
+  public void parse(String line)
+  {
+    this.line = line;
+    scan(line);
+
+    ts = parseLong(line, starts[1], ends[1]);
+    speed = parseDouble(line, starts[2], ends[2]);
+    dist = parseDouble(line, starts[3], ends[3]);
+    bearing = parseDouble(line, starts[4], ends[4]);
+    rtid = parseInt(line, starts[5], ends[5]);
+    secsToDep = parseInt(line, starts[8], ends[8]);
+    lon = parseDouble(line, starts[9], ends[9]);
+    lat = parseDouble(line, starts[10], ends[10]);
+  }
+
+  /**
+   * Finds the start and end of each field in one pass.
+   */
+  private void scan(String line)
+  {
+    int n = line.length();
+    int pos = 0;
+    for (int f = 0; f < FIELDS; f++)
+    {
+      if (pos < n && line.charAt(pos) == '"')
+      {
+        quoted[f] = true;
+        starts[f] = ++pos;
+        while (true)
+        {
+          if (pos >= n)
+            throw new IllegalArgumentException("Unterminated quote in field " + f + ": " + line);
+          if (line.charAt(pos) == '"')
+          {
+            if (pos + 1 < n && line.charAt(pos + 1) == '"')
+              pos += 2;
+            else
+              break;
+          }
+          else
+          {
+            pos++;
+          }
+        }
+        ends[f] = pos++;
+      }
+      else
+      {
+        quoted[f] = false;
+        starts[f] = pos;
+        while (pos < n)
+        {
+          char c = line.charAt(pos);
+          if (c == ',' || c == '\n' || c == '\r')
+            break;
+          pos++;
+        }
+        ends[f] = pos;
+      }
+
+      if (f < FIELDS - 1)
+      {
+        if (pos >= n || line.charAt(pos) != ',')
+          throw new IllegalArgumentException("Expected " + FIELDS + " fields: " + line);
+        pos++;
+      }
+    }
+  }
+
+  public String getId()
+  {
+    return text(0);
+  }
+
+  public long getTs()
+  {
+    return ts;
+  }
+
+  public double getSpeed()
+  {
+    return speed;
+  }
+
+  public double getDist()
+  {
+    return dist;
+  }
+
+  public double getBearing()
+  {
+    return bearing;
+  }
+
+  public int getRtid()
+  {
+    return rtid;
+  }
+
+  public String getOrig()
+  {
+    return text(6);
+  }
+
+  public String getDest()
+  {
+    return text(7);
+  }
+
+  public int getSecsToDep()
+  {
+    return secsToDep;
+  }
+
+  public double getLon()
+  {
+    return lon;
+  }
+
+  public double getLat()
+  {
+    return lat;
+  }
+
+  /**
+   * @return POINT (lon lat) with lon and lat as they were written in the line
+   */
+  public String getGeometryText()
+  {
+    geometry.setLength(0);
+    geometry.append("POINT (")
+        .append(line, starts[9], ends[9])
+        .append(' ')
+        .append(line, starts[10], ends[10])
+        .append(')');
+    return geometry.toString();
+  }
+
+  private String text(int f)
+  {
+    String s = line.substring(starts[f], ends[f]);
+    return quoted[f] ? s.replace("\"\"", "\"") : s;
+  }
+
+  /**
+   * Parses a long from s[start, end); same result and errors as Long.parseLong.
+   */
+  static long parseLong(CharSequence s, int start, int end)
+  {
+    int i = start;
+    boolean negative = false;
+    if (i < end && (s.charAt(i) == '-' || s.charAt(i) == '+'))
+    {
+      negative = s.charAt(i) == '-';
+      i++;
+    }
+    // 18 digits can not overflow
+    if (i == end || end - i > 18)
+      return Long.parseLong(s.subSequence(start, end).toString());
+
+    long value = 0;
+    for (; i < end; i++)
+    {
+      int d = s.charAt(i) - '0';
+      if (d < 0 || d > 9)
+        return Long.parseLong(s.subSequence(start, end).toString());
+      value = value * 10 + d;
+    }
+    return negative ? -value : value;
+  }
+
+  /**
+   * Parses an int from s[start, end); same result and errors as Integer.parseInt.
+   */
+  static int parseInt(CharSequence s, int start, int end)
+  {
+    // up to 9 digits fit an int; longer ones are left to Integer.parseInt for its range check
+    int digits = end - start;
+    if (digits > 0 && (s.charAt(start) == '-' || s.charAt(start) == '+'))
+      digits--;
+    if (digits > 9)
+      return Integer.parseInt(s.subSequence(start, end).toString());
+    return (int) parseLong(s, start, end);
+  }
+
+  /**
+   * Parses a double from s[start, end); same result and errors as Double.parseDouble.
+   *
+   * A decimal mantissa below 2^53 and a power of ten up to 10^22 are both exact doubles, so one
+   * multiply or divide rounds the same as Double.parseDouble. Anything else is passed to it.
+   */
+  static double parseDouble(CharSequence s, int start, int end)
+  {
+    int i = start;
+    boolean negative = false;
+    if (i < end && (s.charAt(i) == '-' || s.charAt(i) == '+'))
+    {
+      negative = s.charAt(i) == '-';
+      i++;
+    }
+
+    long mantissa = 0;
+    int digits = 0;
+    int scale = 0;
+    boolean dot = false;
+    for (; i < end; i++)
+    {
+      char c = s.charAt(i);
+      if (c >= '0' && c <= '9')
+      {
+        if (mantissa >= MAX_EXACT)
+          return Double.parseDouble(s.subSequence(start, end).toString());
+        mantissa = mantissa * 10 + (c - '0');
+        digits++;
+        if (dot)
+          scale++;
+      }
+      else if (c == '.' && !dot)
+      {
+        dot = true;
+      }
+      else
+      {
+        break;
+      }
+    }
+    if (digits == 0)
+      return Double.parseDouble(s.subSequence(start, end).toString());
+
+    int exponent = 0;
+    if (i < end && (s.charAt(i) == 'e' || s.charAt(i) == 'E'))
+    {
+      i++;
+      boolean negativeExponent = false;
+      if (i < end && (s.charAt(i) == '-' || s.charAt(i) == '+'))
+      {
+        negativeExponent = s.charAt(i) == '-';
+        i++;
+      }
+      int expDigits = 0;
+      for (; i < end && expDigits < 4; i++, expDigits++)
+      {
+        int d = s.charAt(i) - '0';
+        if (d < 0 || d > 9)
+          break;
+        exponent = exponent * 10 + d;
+      }
+      if (expDigits == 0)
+        return Double.parseDouble(s.subSequence(start, end).toString());
+      if (negativeExponent)
+        exponent = -exponent;
+    }
+    // trailing characters (d, f, whitespace, more exponent digits) are left to Double.parseDouble
+    if (i != end)
+      return Double.parseDouble(s.subSequence(start, end).toString());
+
+    int pow = exponent - scale;
+    if (mantissa >= MAX_EXACT || pow < -22 || pow > 22)
+      return Double.parseDouble(s.subSequence(start, end).toString());
+
+    double value = pow >= 0 ? mantissa * POW10[pow] : mantissa / POW10[-pow];
+    return negative ? -value : value;
+  }
+}
@@ -0,0 +1,108 @@
+package com.esri.realtime.dse
+
+import java.io.{File, FileWriter, PrintWriter}
+import java.util.concurrent.ConcurrentHashMap
+
+import org.apache.commons.logging.LogFactory
+import org.apache.spark.streaming.scheduler.{StreamingListener, StreamingListenerBatchCompleted}
+import org.apache.spark.util.AccumulatorV2
+
+/**
+  * Batch metrics of KafkaToDSE, one line per batch with records.
+  *
+  * Input rows, processing time and scheduling delay come from the batch info; the rows written and
+  * task times come from accumulators the write tasks add to, and the write time is the time the
+  * driver waited for saveToCassandra. Nothing reads the data a second time.
+  *
+  * Lines are CSV, starting with the batch time in epoch ms like the samples of the pth monitors:
+  *
+  * batchTime,inputRows,processingMs,schedulingDelayMs,rowsWritten,writeMs,taskMsAvg,taskMsMax
+  *
+  * @param csvPath file the lines are appended to; null for none
+  * @param stdout  print the lines when there is no file
+  */
+class BatchMetricsListener(csvPath: String, stdout: Boolean) extends StreamingListener {
+
+  private val log = LogFactory.getLog(this.getClass)
+
+  private val HEADER = "batchTime,inputRows,processingMs,schedulingDelayMs,rowsWritten,writeMs,taskMsAvg,taskMsMax"
+
+  /**
+    * What the driver saw of one batch's write.
+    */
+  private case class Write(rowsWritten: Long, writeMs: Long, taskMsAvg: Double, taskMsMax: Long)
+
+  // by batch time; filled by the output operation, taken when the batch completes
+  private val writes = new ConcurrentHashMap[Long, Write]()
+
+  private val csv: PrintWriter = if (csvPath == null) null else {
+    val file = new File(csvPath)
+    val writer = new PrintWriter(new FileWriter(file, true), true)
+    if (file.length() == 0) {
+      writer.println(HEADER)
+    }
+    writer
+  }
+
+  // with a file the lines only go there
+  private val print = stdout && csv == null
+
+  if (print) {
+    println(HEADER)
+  }
+
+  /**
+    * Called on the driver after a batch is saved.
+    */
+  def recordWrite(batchTime: Long, rowsWritten: Long, writeMs: Long, taskMsAvg: Double, taskMsMax: Long): Unit = {
+    writes.put(batchTime, Write(rowsWritten, writeMs, taskMsAvg, taskMsMax))
+  }
+
+  override def onBatchCompleted(batchCompleted: StreamingListenerBatchCompleted): Unit = {
+    val info = batchCompleted.batchInfo
+    val batchTime = info.batchTime.milliseconds
+    val write = Option(writes.remove(batchTime)).getOrElse(Write(0, 0, 0, 0))
+
+    if (info.numRecords > 0) {
+      output("%d,%d,%d,%d,%d,%d,%.0f,%d".format(batchTime, info.numRecords,
+        info.processingDelay.getOrElse(-1L), info.schedulingDelay.getOrElse(-1L),
+        write.rowsWritten, write.writeMs, write.taskMsAvg, write.taskMsMax))
+    }
+  }
+
+  private def output(line: String): Unit = {
+    if (csv != null) {
+      csv.println(line)
+      if (csv.checkError()) {
+        log.error("Failed to write batch metrics to " + csvPath)
+      }
+    }
+    if (print) {
+      println(line)
+    }
+  }
+}
+
+/**
+  * Largest value added by any task.
+  */
+class LongMaxAccumulator extends AccumulatorV2[Long, Long] {
+
+  private var max = Long.MinValue
+
+  override def isZero: Boolean = max == Long.MinValue
+
+  override def copy(): LongMaxAccumulator = {
+    val acc = new LongMaxAccumulator
+    acc.max = max
+    acc
+  }
+
+  override def reset(): Unit = max = Long.MinValue
+
+  override def add(v: Long): Unit = max = math.max(max, v)
+
+  override def merge(other: AccumulatorV2[Long, Long]): Unit = add(other.value)
+
+  override def value: Long = max
+}
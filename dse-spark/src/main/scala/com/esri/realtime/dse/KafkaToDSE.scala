@@ -1,22 +1,24 @@
 package com.esri.realtime.dse
 
-import java.util.UUID
+import java.util.SplittableRandom
 
 import com.datastax.driver.core.ConsistencyLevel
 import com.datastax.spark.connector._
 import com.datastax.spark.connector.cql.CassandraConnector
-import com.fasterxml.jackson.dataformat.csv.{CsvMapper, CsvParser, CsvSchema}
+import com.esri.realtime.dse.util.PlanesParser
 import org.apache.commons.logging.LogFactory
+import org.apache.kafka.clients.consumer.ConsumerRecord
 import org.apache.kafka.common.serialization.StringDeserializer
-import org.apache.spark.streaming.dstream.DStream
+import org.apache.spark.TaskContext
+import org.apache.spark.rdd.RDD
+import org.apache.spark.streaming.dstream.InputDStream
 import org.apache.spark.streaming.kafka010.ConsumerStrategies.Subscribe
-import org.apache.spark.streaming.kafka010.KafkaUtils
+import org.apache.spark.streaming.kafka010.{CanCommitOffsets, HasOffsetRanges, KafkaUtils, OffsetRange}
 import org.apache.spark.streaming.kafka010.LocationStrategies.PreferConsistent
 import org.apache.spark.streaming.{Milliseconds, StreamingContext}
+import org.apache.spark.util.LongAccumulator
 import org.apache.spark.{SparkConf, SparkContext}
 
-import scala.util.Random
-
 //
 // Spark-DSE-Connector:  https://github.com/datastax/spark-cassandra-connector
 //
@@ -27,18 +29,24 @@ object KafkaToDSE{
 
   private val log = LogFactory.getLog(this.getClass)
 
+  // records /s read from each Kafka partition when maxRatePerPartition is not given
+  private val DefaultMaxRatePerPartition = 100000
+
   /**
     * Main Method
     */
   def main(args: Array[String]): Unit = {
 
     if (args.length < 11) {
-      System.err.println("Usage: KafkaToDSE <sparkMaster> <emitIntervalInMillis>" +
-          " <kafkaConsumerGroup> <kafkaTopics> <kafkaThreads> <cassandraHost> <replicationFactor> <recreateTable> <storeGeo> <debug>")
+      System.err.println("Usage: KafkaToDSE <sparkMaster> <emitIntervalInMillis> <kafkaBrokers>" +
+          " <kafkaConsumerGroup> <kafkaTopics> <writeTasks> <cassandraHost> <replicationFactor> <recreateTable> <storeGeo> <debug> (maxRatePerPartition)")
+      System.err.println("  writeTasks: tasks writing to Cassandra each batch; 0 writes from the task reading each Kafka partition")
+      System.err.println("  maxRatePerPartition: most records /s read from each Kafka partition; default " + DefaultMaxRatePerPartition + ", 0 for no limit")
       System.exit(1)
     }
 
-    val Array(sparkMaster, emitInterval, kBrokers, kConsumerGroup, kTopics, kThreads, kCassandraHost, kReplicationFactor, recreateTable, storeGeo, kDebug) = args
+    val Array(sparkMaster, emitInterval, kBrokers, kConsumerGroup, kTopics, kWriteTasks, kCassandraHost, kReplicationFactor, recreateTable, storeGeo, kDebug) = args.take(11)
+    val maxRatePerPartition = if (args.length > 11) args(11).toInt else DefaultMaxRatePerPartition
     val useSolr = storeGeo.toBoolean
     println("Using Solr ? " + useSolr)
 
@@ -59,6 +67,15 @@ object KafkaToDSE{
         .set("spark.cassandra.output.consistency.level", ConsistencyLevel.ONE.toString)
         .setAppName(getClass.getSimpleName)
 
+    // caps each Kafka partition so a backlog is read over several batches instead of all in the next one; it is also
+    // the only bound on the first batch, as the direct Kafka stream of Spark 2.2 ignores spark.streaming.backpressure.initialRate
+    if (maxRatePerPartition > 0) {
+      sConf.set("spark.streaming.kafka.maxRatePerPartition", maxRatePerPartition.toString)
+    }
+    // backpressure: the records read each batch follow how fast the last batches were processed, so when
+    // Cassandra slows down batches get smaller instead of queueing; --conf spark.streaming.backpressure.enabled=false turns it off
+    sConf.setIfMissing("spark.streaming.backpressure.enabled", "true")
+
     val sc = new SparkContext(sparkMaster, "KafkaToDSE", sConf)
 
     val keyspace = "realtime"
@@ -75,6 +92,8 @@ object KafkaToDSE{
           session.execute(s"DROP TABLE IF EXISTS $keyspace.$table")
 
           // FiXME: Dynamically create the CREATE TABLE sql based on schema
+          // a partition per plane with its newest report first, so IngestLagMon can read the latest row of each plane;
+          // uid keeps rows unique when a plane reports the same ts twice (e.g. a planes file sent more than once)
           session.execute(s"""
           CREATE TABLE IF NOT EXISTS $keyspace.$table
           (
@@ -90,9 +109,11 @@ object KafkaToDSE{
             lon double,
             lat double,
             geometry text,
+            sendts timestamp,
+            uid text,
 
-            PRIMARY KEY (id, ts)
-          )"""
+            PRIMARY KEY (id, ts, uid)
+          ) WITH CLUSTERING ORDER BY (ts DESC, uid ASC)"""
           )
 
           if (useSolr) {
@@ -154,30 +175,39 @@ object KafkaToDSE{
 
     // the streaming context
     val ssc = new StreamingContext(sc, Milliseconds(emitInterval.toInt))
-
-    // create the kafka stream
-    val stream = createKafkaStream(ssc, kBrokers, kConsumerGroup, kTopics, kThreads.toInt)
-
-    // very specific adaptation for performance
-    val dataStream = stream.map(line => adaptSpecific(line))
-
-    // debug
-    if (kDebug.toBoolean) {
-      dataStream.foreachRDD {
-        (rdd, time) =>
-          val count = rdd.count()
-          if (count > 0) {
-            val msg = "Time %s: saving to DSE (%s total records)".format(time, count)
-            log.warn(msg)
-            println(msg)
-          }
-      }
-    }
-
-    // save to cassandra
-    dataStream.foreachRDD {
-      (rdd, _) =>
-        rdd.saveToCassandra(
+    val rateControl =
+      if (sConf.getBoolean("spark.streaming.backpressure.enabled", false)) Some(new RateControlListener(sConf, emitInterval.toLong))
+      else None
+    rateControl.foreach(ssc.addStreamingListener)
+
+    // a line per batch; to a CSV file with --conf spark.kafkatodse.metrics.csv=path, and to stdout with debug
+    val batchMetrics = new BatchMetricsListener(sConf.get("spark.kafkatodse.metrics.csv", null), kDebug.toBoolean)
+    ssc.addStreamingListener(batchMetrics)
+
+    // create the kafka stream; one stream reads each partition of the topics once
+    val stream = createKafkaStream(ssc, kBrokers, kConsumerGroup, kTopics)
+    val writeTasks = kWriteTasks.toInt
+
+    stream.foreachRDD {
+      (kafkaRdd, time) =>
+        // taken before any transformation; only the KafkaRDD itself has the offset ranges
+        val offsetRanges = kafkaRdd.asInstanceOf[HasOffsetRanges].offsetRanges
+        logAssignment(offsetRanges, writeTasks)
+        rateControl.foreach(_.recordPartitions(offsetRanges.length))
+
+        // filled by the write tasks as they run, so the batch metrics need no extra pass over the data
+        val rowsWritten = kafkaRdd.sparkContext.longAccumulator
+        val taskMs = kafkaRdd.sparkContext.longAccumulator
+        val taskMsMax = new LongMaxAccumulator
+        kafkaRdd.sparkContext.register(taskMsMax)
+
+        // the record value and timestamp; ConsumerRecord can not be shuffled
+        val lines = kafkaRdd.map(record => (record.value(), record.timestamp()))
+        val dataRdd = adapt(if (writeTasks > 0) lines.repartition(writeTasks) else lines, rowsWritten, taskMs, taskMsMax)
+
+        // save to cassandra
+        val writeStart = System.nanoTime()
+        dataRdd.saveToCassandra(
           keyspace,
           table,
           // FIXME: Do we need to specify all the columns?
@@ -193,9 +223,18 @@ object KafkaToDSE{
             "secstodep",
             "lon",
             "lat",
-            "geometry"
+            "geometry",
+            "sendts",
+            "uid"
           )
         )
+
+        val writeMs = (System.nanoTime() - writeStart) / 1000000
+        batchMetrics.recordWrite(time.milliseconds, rowsWritten.value, writeMs,
+          if (taskMs.count > 0) taskMs.avg else 0.0, if (taskMsMax.isZero) 0L else taskMsMax.value)
+
+        // the batch is in Cassandra, so a restart of the group can start after it
+        stream.asInstanceOf[CanCommitOffsets].commitAsync(offsetRanges)
     }
 
     log.info("Stream is starting now...")
@@ -206,8 +245,50 @@ object KafkaToDSE{
     ssc.awaitTermination()
   }
 
-  // create the kafka stream
-  private def createKafkaStream(ssc: StreamingContext, brokers: String, consumerGroup: String, topics: String, numOfThreads: Int = 1): DStream[String] = {
+  /**
+    * Very specific adaptation for performance; each task has its own adapter, so nothing is shared
+    * between executor threads, and the records are adapted one at a time as they are written
+    *
+    * When a task finishes it adds its rows and its time in ms; only tasks that succeed are counted.
+    */
+  private def adapt(lines: RDD[(String, Long)], rowsWritten: LongAccumulator, taskMs: LongAccumulator, taskMsMax: LongMaxAccumulator) = {
+    lines.mapPartitions { records =>
+      val adapter = new PlanesAdapter
+      val start = System.nanoTime()
+      var rows = 0L
+      // the task completes after the connector has flushed its last writes
+      TaskContext.get().addTaskCompletionListener { _: TaskContext =>
+        val ms = (System.nanoTime() - start) / 1000000
+        rowsWritten.add(rows)
+        taskMs.add(ms)
+        taskMsMax.add(ms)
+      }
+      records.map { case (line, sendTs) =>
+        rows += 1
+        adapter.adaptSpecific(line, sendTs)
+      }
+    }
+  }
+
+  // the last logged assignment of Kafka partitions to read tasks
+  @volatile private var lastAssignment = ""
+
+  /**
+    * Logs which Kafka partition each read task reads, at the first batch and whenever the partitions change.
+    */
+  private def logAssignment(offsetRanges: Array[OffsetRange], writeTasks: Int): Unit = {
+    val assignment = offsetRanges.zipWithIndex
+        .map { case (range, task) => s"$task=${range.topic}-${range.partition}" }
+        .mkString(", ")
+    if (assignment != lastAssignment) {
+      lastAssignment = assignment
+      val writers = if (writeTasks > 0) s"repartitioned to $writeTasks write tasks" else "each read task writes its own partition"
+      log.info(s"Kafka partitions by read task: $assignment; $writers")
+    }
+  }
+
+  // create the kafka stream; each line comes with the record timestamp, which the sender sets to its send time
+  private def createKafkaStream(ssc: StreamingContext, brokers: String, consumerGroup: String, topics: String): InputDStream[ConsumerRecord[String, String]] = {
     val kafkaParams = Map[String, Object](
       "bootstrap.servers" -> brokers,
       "key.deserializer" -> classOf[StringDeserializer],
@@ -217,57 +298,87 @@ object KafkaToDSE{
       "enable.auto.commit" -> (false: java.lang.Boolean)
     )
     val topicMap = topics.split(",")
-    val kafkaStreams = (1 to numOfThreads).map { i =>
-      KafkaUtils.createDirectStream[String, String](ssc, PreferConsistent, Subscribe[String, String](topicMap, kafkaParams)).map(_.value())
-    }
-    val unifiedStream = ssc.union(kafkaStreams)
-    unifiedStream
+    // a direct stream already reads every partition in its own task; more streams on the same group
+    // would each read all the partitions again
+    KafkaUtils.createDirectStream[String, String](ssc, PreferConsistent, Subscribe[String, String](topicMap, kafkaParams))
   }
+}
 
-  // used to generate a random uuid
-  private val RANDOM = new Random()
-
-  // initialized the object mapper / text parser only once
-  private val objectMapper = {
-    // create an empty schema
-    val schema = CsvSchema.emptySchema()
-        .withColumnSeparator(',')
-        .withLineSeparator("\\n")
-    // create the mapper
-    val csvMapper = new CsvMapper()
-    csvMapper.enable(CsvParser.Feature.WRAP_AS_ARRAY)
-    csvMapper
-        .readerFor(classOf[Array[String]])
-        .`with`(schema)
-  }
+/**
+  * Turns planes lines into rows for the planes table.
+  * Holds the parser, random source and id buffer of one task; not thread safe.
+  */
+private[dse] class PlanesAdapter {
+
+  // used to generate a random uuid; seeded from the shared generator once per task
+  private val random = new SplittableRandom()
+
+  // the parser reuses its buffers for every line
+  private val parser = new PlanesParser
 
+  // id text in the UUID format (8-4-4-4-12 hex digits)
+  private val idChars = new Array[Char](36)
 
   /**
     * Adapt to the very specific Safegraph Schema
+    *
+    * @param sendTs time the sender sent the line (Kafka record timestamp); stored as sendts to measure ingest lag
     */
-  private def adaptSpecific(line: String) = {
-    val uuid = new UUID(RANDOM.nextLong(), RANDOM.nextLong())
-
-    // parse out the line
-    val rows = objectMapper.readValues[Array[String]](line)
-    val row = rows.nextValue()
-
-    val id = uuid.toString              // NOTE: This is to ensure unique records
-    val ts = row(1).toLong
-    val speed = row(2).toDouble
-    val dist = row(3).toDouble
-    val bearing = row(4).toDouble
-    val rtid = row(5).toInt
-    val orig = row(6)
-    val dest = row(7)
-    val secsToDep = row(8).toInt
-    val longitude = row(9).toDouble
-    val latitude = row(10).toDouble
-    val geometryText = "POINT (" + row(9) + " " + row(10) + ")"
+  def adaptSpecific(line: String, sendTs: Long) = {
+    // parse out the line; numbers are read straight from the line without splitting it
+    parser.parse(line)
+    val row = parser
+
+    val id = row.getId                  // the plane; rows of a plane share a partition
+    val uid = randomId()                // NOTE: This is to ensure unique records
+    val ts = row.getTs
+    val speed = row.getSpeed
+    val dist = row.getDist
+    val bearing = row.getBearing
+    val rtid = row.getRtid
+    val orig = row.getOrig
+    val dest = row.getDest
+    val secsToDep = row.getSecsToDep
+    val longitude = row.getLon
+    val latitude = row.getLat
+    val geometryText = row.getGeometryText
 
     // FIXME: why do we need to convert to tuples? why cant we store the data as a map?
-    val data = (id, ts, speed, dist, bearing, rtid, orig, dest, secsToDep, latitude, longitude, geometryText)
+    val data = (id, ts, speed, dist, bearing, rtid, orig, dest, secsToDep, latitude, longitude, geometryText, sendTs, uid)
     //println(data)
     data
   }
+
+  /**
+    * @return 128 random bits written as UUID.toString would write them
+    */
+  private def randomId(): String = {
+    val msb = random.nextLong()
+    val lsb = random.nextLong()
+    hex(msb >>> 32, 8, 0)
+    idChars(8) = '-'
+    hex(msb >>> 16, 4, 9)
+    idChars(13) = '-'
+    hex(msb, 4, 14)
+    idChars(18) = '-'
+    hex(lsb >>> 48, 4, 19)
+    idChars(23) = '-'
+    hex(lsb, 12, 24)
+    new String(idChars)
+  }
+
+  // writes the low digits of value in hex to idChars at offset
+  private def hex(value: Long, digits: Int, offset: Int): Unit = {
+    var v = value
+    var i = offset + digits - 1
+    while (i >= offset) {
+      idChars(i) = PlanesAdapter.HEX((v & 0xf).toInt)
+      v >>>= 4
+      i -= 1
+    }
+  }
+}
+
+private[dse] object PlanesAdapter {
+  private val HEX = "0123456789abcdef".toCharArray
 }
@@ -0,0 +1,114 @@
+package com.esri.realtime.dse
+
+import org.apache.commons.logging.LogFactory
+import org.apache.spark.SparkConf
+import org.apache.spark.streaming.scheduler.{StreamingListener, StreamingListenerBatchCompleted, StreamingListenerStreamingStarted}
+
+/**
+  * Logs the backpressure decision after each batch.
+  *
+  * With spark.streaming.backpressure.enabled Spark's PID rate estimator sets the records read in the
+  * next batch from the processing time and scheduling delay of the last one: when a batch takes less
+  * than the interval the rate grows, when it takes longer or batches are queued the rate shrinks.
+  * This listener repeats that calculation so each decision is visible: Spark's estimator is internal, so
+  * the listener keeps its own copy with the same settings, fed the same processing end time, records and
+  * delays from the same batch completed events, and reset when the streaming context starts, as Spark's is.
+  * The logged rate is the copy's estimate; it matches Spark's as long as both see the same events, e.g.
+  *
+  * Batch 1538000000000: 48000 records in 812 ms of 1000 ms (81%), delay 3 ms, processed 59113 /s -> grow to est. 59094 /s (59094 records per batch)
+  *
+  * As in DirectKafkaInputDStream.maxMessagesPerPartition the logged rate is capped at
+  * spark.streaming.kafka.maxRatePerPartition times the partitions read, and marked when the cap applies.
+  * After the first batch Spark has no estimate yet, so the cap is the only limit (unlimited without one).
+  * Spark splits the rate over the partitions by their lag and caps each one, so with uneven lag the
+  * records read can be lower still.
+  */
+class RateControlListener(conf: SparkConf, batchIntervalMs: Long) extends StreamingListener {
+
+  private val log = LogFactory.getLog(this.getClass)
+
+  // same settings and defaults as org.apache.spark.streaming.scheduler.rate.PIDRateEstimator
+  private val proportional = conf.getDouble("spark.streaming.backpressure.pid.proportional", 1.0)
+  private val integral = conf.getDouble("spark.streaming.backpressure.pid.integral", 0.2)
+  private val derivative = conf.getDouble("spark.streaming.backpressure.pid.derived", 0.0)
+  private val minRate = conf.getDouble("spark.streaming.backpressure.pid.minRate", 100)
+  private val maxRatePerPartition = conf.getDouble("spark.streaming.kafka.maxRatePerPartition", 0)
+
+  // Kafka partitions read by the latest batch; set from the driver's output operation
+  @volatile private var partitions = 0
+
+  // changes of the batch size within this are reported as hold
+  private val HOLD = 0.05
+
+  // state of the estimator, as in PIDRateEstimator
+  private var firstRun = true
+  private var latestTime = -1L
+  private var latestRate = -1.0
+  private var latestError = -1.0
+
+  /**
+    * Called on the driver for each batch with the number of Kafka partitions it reads.
+    */
+  def recordPartitions(n: Int): Unit = {
+    partitions = n
+  }
+
+  /**
+    * Spark creates its estimator with the input stream, so it starts afresh with each streaming context.
+    */
+  override def onStreamingStarted(streamingStarted: StreamingListenerStreamingStarted): Unit = {
+    firstRun = true
+    latestTime = -1L
+    latestRate = -1.0
+    latestError = -1.0
+  }
+
+  override def onBatchCompleted(batchCompleted: StreamingListenerBatchCompleted): Unit = {
+    val info = batchCompleted.batchInfo
+    // KafkaToDSE has one input stream, so these are the records of the Kafka stream
+    val records = info.numRecords
+
+    // the same values and conditions RateController and PIDRateEstimator.compute use
+    for (time <- info.processingEndTime; processingMs <- info.processingDelay; delayMs <- info.schedulingDelay
+         if time > latestTime && records > 0 && processingMs > 0) {
+      val processingRate = records * 1000.0 / processingMs
+      val error = latestRate - processingRate
+      val delaySinceUpdate = (time - latestTime).toDouble / 1000
+      // records queued by the scheduling delay, spread over a batch
+      val historicalError = delayMs.toDouble * processingRate / batchIntervalMs
+      val dError = (error - latestError) / delaySinceUpdate
+      val newRate = math.max(latestRate - proportional * error - integral * historicalError - derivative * dError, minRate)
+
+      // the first run only records the processing rate and publishes no rate, so the next batch is not limited by it
+      val started = !firstRun
+      latestTime = time
+      if (firstRun) {
+        latestRate = processingRate
+        latestError = 0.0
+        firstRun = false
+      } else {
+        latestRate = newRate
+        latestError = error
+      }
+
+      // Spark keeps the estimate as a whole number; the cap only limits what is read, and after the first batch it is the only limit
+      val cap = if (maxRatePerPartition > 0 && partitions > 0) maxRatePerPartition * partitions else Double.PositiveInfinity
+      val estimate = newRate.toLong.toDouble
+      val capped = !started || estimate > cap
+      val appliedRate = if (started) math.min(estimate, cap) else cap
+      val recordsPerBatch = appliedRate * batchIntervalMs / 1000
+      val decision =
+        if (!started) "start"
+        else if (recordsPerBatch > records * (1 + HOLD)) "grow"
+        else if (recordsPerBatch < records * (1 - HOLD)) "shrink"
+        else "hold"
+      val applied =
+        if (appliedRate.isInfinite) "unlimited"
+        else "est. %.0f /s (%d records per batch%s)".format(appliedRate, recordsPerBatch.toLong, if (capped) ", capped" else "")
+
+      log.info("Batch %d: %d records in %d ms of %d ms (%.0f%%), delay %d ms, processed %.0f /s -> %s to %s".format(
+        info.batchTime.milliseconds, records, processingMs, batchIntervalMs, processingMs * 100.0 / batchIntervalMs, delayMs,
+        processingRate, decision, applied))
+    }
+  }
+}
@@ -0,0 +1,157 @@
+package com.esri.realtime.dse.util;
+
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.dataformat.csv.CsvMapper;
+import com.fasterxml.jackson.dataformat.csv.CsvParser;
+import com.fasterxml.jackson.dataformat.csv.CsvSchema;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Compares parsing a planes line in KafkaToDSE before and after PlanesParser.
+ *
+ * jackson: CsvMapper readValues to a String[], then toLong/toDouble/toInt of each field and
+ *          the geometry text concatenated from the lon and lat fields
+ * parser:  PlanesParser over the same line
+ *
+ * Both produce the same typed fields; the UUID and the row tuple are left out as they are the same for both.
+ * For reference:
+ *
+ * parseOnly: PlanesParser without the orig, dest and geometry Strings, the part that allocates nothing
+ * split:     String.split and the same parse calls as jackson, without a CSV library
+ *
+ * Run with:
+ *   mvn test-compile dependency:build-classpath -Dmdep.outputFile=target/cp.txt -Dmdep.includeScope=test
+ *   java -cp target/classes:target/test-classes:$(cat target/cp.txt) com.esri.realtime.dse.util.PlanesParserBenchmark -prof gc
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PlanesParserBenchmark
+{
+
+  private static final int NUM_LINES = 10000;
+
+  private String[] lines;
+  private int next;
+
+  private ObjectReader objectMapper;
+  private final PlanesParser parser = new PlanesParser();
+
+  @Setup
+  public void setup()
+  {
+    // Lines as the Kafka sender sends them: the planes layout plus a newline
+    Random random = new Random(7);
+    lines = new String[NUM_LINES];
+    for (int i = 0; i < NUM_LINES; i++)
+    {
+      lines[i] = String.format("%d,%d,%.2f,%.2f,%.2f,%d,%s,%s,%d,%.5f,%.5f\n", i, 1506957079575L + i,
+          100 + random.nextDouble() * 300, random.nextDouble() * 10000, random.nextDouble() * 360 - 180,
+          i % 1000, "Origin Airport " + (i % 97), "Destination International Airport " + (i % 89), -1,
+          random.nextDouble() * 360 - 180, random.nextDouble() * 180 - 90);
+    }
+
+    // configured as KafkaToDSE had it
+    CsvSchema schema = CsvSchema.emptySchema()
+        .withColumnSeparator(',')
+        .withLineSeparator("\\n");
+    CsvMapper csvMapper = new CsvMapper();
+    csvMapper.enable(CsvParser.Feature.WRAP_AS_ARRAY);
+    objectMapper = csvMapper.readerFor(String[].class).with(schema);
+  }
+
+  private String nextLine()
+  {
+    if (next == lines.length)
+      next = 0;
+    return lines[next++];
+  }
+
+  @Benchmark
+  public void jackson(Blackhole bh) throws IOException
+  {
+    String[] row = objectMapper.<String[]>readValues(nextLine()).nextValue();
+
+    bh.consume(Long.parseLong(row[1]));
+    bh.consume(Double.parseDouble(row[2]));
+    bh.consume(Double.parseDouble(row[3]));
+    bh.consume(Double.parseDouble(row[4]));
+    bh.consume(Integer.parseInt(row[5]));
+    bh.consume(row[6]);
+    bh.consume(row[7]);
+    bh.consume(Integer.parseInt(row[8]));
+    bh.consume(Double.parseDouble(row[9]));
+    bh.consume(Double.parseDouble(row[10]));
+    bh.consume("POINT (" + row[9] + " " + row[10] + ")");
+  }
+
+  @Benchmark
+  public void parser(Blackhole bh)
+  {
+    parser.parse(nextLine());
+
+    bh.consume(parser.getTs());
+    bh.consume(parser.getSpeed());
+    bh.consume(parser.getDist());
+    bh.consume(parser.getBearing());
+    bh.consume(parser.getRtid());
+    bh.consume(parser.getOrig());
+    bh.consume(parser.getDest());
+    bh.consume(parser.getSecsToDep());
+    bh.consume(parser.getLon());
+    bh.consume(parser.getLat());
+    bh.consume(parser.getGeometryText());
+  }
+
+  @Benchmark
+  public void parseOnly(Blackhole bh)
+  {
+    parser.parse(nextLine());
+
+    bh.consume(parser.getTs());
+    bh.consume(parser.getLat());
+  }
+
+  @Benchmark
+  public void split(Blackhole bh)
+  {
+    String[] row = nextLine().trim().split(",");
+
+    bh.consume(Long.parseLong(row[1]));
+    bh.consume(Double.parseDouble(row[2]));
+    bh.consume(Double.parseDouble(row[3]));
+    bh.consume(Double.parseDouble(row[4]));
+    bh.consume(Integer.parseInt(row[5]));
+    bh.consume(row[6]);
+    bh.consume(row[7]);
+    bh.consume(Integer.parseInt(row[8]));
+    bh.consume(Double.parseDouble(row[9]));
+    bh.consume(Double.parseDouble(row[10]));
+    bh.consume("POINT (" + row[9] + " " + row[10] + ")");
+  }
+
+  public static void main(String[] args) throws Exception
+  {
+    String[] jmhArgs = new String[args.length + 1];
+    jmhArgs[0] = PlanesParserBenchmark.class.getSimpleName();
+    System.arraycopy(args, 0, jmhArgs, 1, args.length);
+    org.openjdk.jmh.Main.main(jmhArgs);
+  }
+}
@@ -0,0 +1,99 @@
+package com.esri.realtime.dse.util;
+
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.dataformat.csv.CsvMapper;
+import com.fasterxml.jackson.dataformat.csv.CsvParser;
+import com.fasterxml.jackson.dataformat.csv.CsvSchema;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/*
+ * Parses the same lines with PlanesParser and with the Jackson CSV path KafkaToDSE used before it
+ * (CsvMapper to a String[], then toLong/toDouble/toInt of each field) and checks every value is the same.
+ * Doubles are compared bit for bit.
+ */
+public class PlanesParserTest
+{
+
+  // configured as KafkaToDSE had it
+  private static final ObjectReader JACKSON = new CsvMapper()
+      .enable(CsvParser.Feature.WRAP_AS_ARRAY)
+      .readerFor(String[].class)
+      .with(CsvSchema.emptySchema().withColumnSeparator(',').withLineSeparator("\\n"));
+
+  @Test
+  public void sampleLines() throws IOException
+  {
+    // as the Kafka sender sends the planes files and the simulator lines
+    Random random = new Random(7);
+    for (int i = 0; i < 100000; i++)
+    {
+      check(String.format("%d,%d,%.2f,%.2f,%.2f,%d,%s,%s,%d,%.5f,%.5f\n", i, 1506957079575L + i,
+          100 + random.nextDouble() * 300, random.nextDouble() * 10000, random.nextDouble() * 360 - 180,
+          i % 1000, "Origin Airport " + (i % 97), "Destination Airport " + (i % 89), random.nextInt(7200) - 1,
+          random.nextDouble() * 360 - 180, random.nextDouble() * 180 - 90));
+    }
+  }
+
+  @Test
+  public void fullPrecisionDoubles() throws IOException
+  {
+    // Double.toString gives up to 17 significant digits and exponents, which go past the fast path
+    Random random = new Random(11);
+    for (int i = 0; i < 100000; i++)
+    {
+      double scale = Math.pow(10, random.nextInt(40) - 20);
+      check(i + ",1506957079575," + random.nextDouble() * scale + "," + -random.nextDouble() * scale + ","
+          + random.nextGaussian() + ",7,A,B,-1," + Double.toString(random.nextDouble() * 360 - 180) + ","
+          + Double.toString(random.nextDouble() * 180 - 90));
+    }
+  }
+
+  @Test
+  public void edgeCases() throws IOException
+  {
+    List<String> lines = new ArrayList<>();
+    lines.add("1,0,0,0.0,-0.0,0,a,b,0,0,0");
+    lines.add("1,-1506957079575,+1.5,1e5,1E-5,+7,a,b,-2147483648,2147483647,-180");
+    lines.add("1,9223372036854775807,123456789012345678,0.1234567890123456789,1e22,1,a,b,1,1e23,1e-23");
+    lines.add("1,1506957079575,.5,5.,00012.50,007,a,b,-0,179.99999999999997,-89.99999999999999");
+    lines.add("1,1506957079575,4.9e-324,1.7976931348623157e308,2.2250738585072014E-308,1,a,b,1,9007199254740993,9007199254740992");
+    lines.add("\"1\",\"1506957079575\",\"12.5\",3,4,5,\"Dallas, TX\",\"O\"\"Hare\",6,\"-96.8\",\"32.7\"\r\n");
+    lines.add("1,1506957079575,1,2,3,4,,,5,6,7,extra,fields");
+    for (String line : lines)
+    {
+      check(line);
+    }
+  }
+
+  private static void check(String line) throws IOException
+  {
+    String[] row = JACKSON.<String[]>readValues(line).nextValue();
+    PlanesParser parser = new PlanesParser();
+    parser.parse(line);
+
+    assertEquals(line, row[0], parser.getId());
+    assertEquals(line, Long.parseLong(row[1]), parser.getTs());
+    assertBits(line, Double.parseDouble(row[2]), parser.getSpeed());
+    assertBits(line, Double.parseDouble(row[3]), parser.getDist());
+    assertBits(line, Double.parseDouble(row[4]), parser.getBearing());
+    assertEquals(line, Integer.parseInt(row[5]), parser.getRtid());
+    assertEquals(line, row[6], parser.getOrig());
+    assertEquals(line, row[7], parser.getDest());
+    assertEquals(line, Integer.parseInt(row[8]), parser.getSecsToDep());
+    assertBits(line, Double.parseDouble(row[9]), parser.getLon());
+    assertBits(line, Double.parseDouble(row[10]), parser.getLat());
+    assertEquals(line, "POINT (" + row[9] + " " + row[10] + ")", parser.getGeometryText());
+  }
+
+  private static void assertBits(String line, double expected, double actual)
+  {
+    assertEquals(line + " -> " + expected + " vs " + actual, Double.doubleToRawLongBits(expected), Double.doubleToRawLongBits(actual));
+  }
+}
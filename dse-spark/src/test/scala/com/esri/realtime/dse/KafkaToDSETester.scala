@@ -8,7 +8,7 @@ object KafkaToDSETester extends App {
   val kafkaBrokers = s"localhost:${Defaults.KafkaPort}"
   val topic = "planes"
   val dseHost = "127.0.0.1"
-  val parameters = Array("local[8]", "1000", kafkaBrokers, "planes-group1", topic, "1", dseHost, "1", "false", "false")
+  val parameters = Array("local[8]", "1000", kafkaBrokers, "planes-group1", topic, "0", dseHost, "1", "false", "false", "false")
   KafkaToDSE.main(parameters)
 
 }